@@ -0,0 +1,7 @@
+import java.util.concurrent.TimeUnit;
+
+public class AdaptivePolicyWorkload extends PolicyWorkload {
+    public AdaptivePolicyWorkload() {
+        super(new AdaptiveFairnessPolicy(System::nanoTime, TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(10)));
+    }
+}
@@ -0,0 +1,5 @@
+public class AlternatedPolicyWorkload extends PolicyWorkload {
+    public AlternatedPolicyWorkload() {
+        super(new AlternatedFairnessPolicy());
+    }
+}
@@ -0,0 +1,5 @@
+public class BinaryCodecWorkload extends CodecWorkload {
+    public BinaryCodecWorkload() {
+        super(new BinaryMessageCodec());
+    }
+}
@@ -0,0 +1,113 @@
+import dining.bench.Workload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Writes a message through a codec and reads it back, cycling through the messages of one meal
+ * plus a SETUP. The bytes go through an in-memory buffer, so only the codec itself is measured.
+ */
+abstract class CodecWorkload implements Workload {
+    private static final Message[] MESSAGES = {
+            new Message(Message.Kind.REQUEST_FORK),
+            new Message(Message.Kind.FORK_ACQUIRED),
+            new Message(1, Message.Kind.RELEASE_FORK),
+            new Message(new Object[] {AcquisitionProtocol.TIMEOUT, 0, "", 0, new String[] {"localhost", "localhost"},
+                    new int[] {5001, 5002}, new int[] {0, 1}, new boolean[] {true, false}, 10000L}, Message.Kind.SETUP)
+    };
+
+    private final MessageCodec codec;
+    private MessageOutput out;
+    private MessageInput in;
+    private int next;
+
+    CodecWorkload(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void setup(int contenders) {
+        ByteFifo fifo = new ByteFifo();
+        try {
+            out = codec.newOutput(fifo.out);
+            in = codec.newInput(fifo.in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int run() {
+        Message message = MESSAGES[next];
+        next = next + 1 == MESSAGES.length ? 0 : next + 1;
+        try {
+            out.write(message);
+            return in.read().getKind().getCode();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Single threaded byte queue. Rewinds whenever the reader catches up, so it never grows past
+     * the largest message.
+     */
+    private static final class ByteFifo {
+        private byte[] data = new byte[4096];
+        private int readPosition;
+        private int writePosition;
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                ensureCapacity(1);
+                data[writePosition++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                ensureCapacity(length);
+                System.arraycopy(bytes, offset, data, writePosition, length);
+                writePosition += length;
+            }
+        };
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                if (readPosition == writePosition) return -1;
+                int b = data[readPosition++] & 0xFF;
+                rewindIfDrained();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (length == 0) return 0;
+                if (readPosition == writePosition) return -1;
+                int count = Math.min(length, writePosition - readPosition);
+                System.arraycopy(data, readPosition, bytes, offset, count);
+                readPosition += count;
+                rewindIfDrained();
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return writePosition - readPosition;
+            }
+        };
+
+        private void ensureCapacity(int length) {
+            if (writePosition + length > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, writePosition + length));
+        }
+
+        private void rewindIfDrained() {
+            if (readPosition == writePosition) readPosition = writePosition = 0;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import dining.bench.Workload;
+
+/**
+ * The fork side of a meal on a fully contended fork: the holder releases after eating, the fork goes
+ * to the next waiter and the previous holder asks for it again. This is the arbitration the decision
+ * thread of a {@link Fork} runs for every command, without the command queue, the journal and the
+ * replies posted to the philosophers' outboxes.
+ */
+public class ForkTransitionWorkload implements Workload {
+    private ForkArbiter<Integer> arbiter;
+    private Integer[] philosophers;
+    private Integer holder;
+
+    @Override
+    public void setup(int contenders) {
+        arbiter = new ForkArbiter<>(new AlternatedFairnessPolicy());
+        philosophers = new Integer[contenders];
+        for (int i = 0; i < contenders; i++) {
+            philosophers[i] = i;
+            arbiter.register(philosophers[i], false);
+        }
+        // Everybody asks once, so all but the holder end up waiting in the queue
+        for (Integer philosopher : philosophers) {
+            if (arbiter.request(philosopher) && holder == null) holder = philosopher;
+        }
+    }
+
+    @Override
+    public int run() {
+        Integer released = holder;
+        holder = arbiter.release(released, true);
+        if (arbiter.request(released) && holder == null) holder = released;
+        return holder;
+    }
+}
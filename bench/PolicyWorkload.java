@@ -0,0 +1,36 @@
+import dining.bench.Workload;
+
+import java.util.Random;
+
+/**
+ * What {@link ForkArbiter} asks a fairness policy around every meal, for a fork shared by
+ * {@code contenders} philosophers with uneven meal counts, all of them waiting: who eats next, the
+ * grant, then the release with a meal and the eater waiting again.
+ */
+abstract class PolicyWorkload implements Workload {
+    private final FairnessPolicy policy;
+
+    PolicyWorkload(FairnessPolicy policy) {
+        this.policy = policy;
+    }
+
+    @Override
+    public void setup(int contenders) {
+        Random random = new Random(42);
+        for (int i = 0; i < contenders; i++) {
+            int contender = policy.addContender();
+            for (int meals = random.nextInt(1000); meals > 0; meals--) policy.ate(contender);
+            policy.waiting(contender);
+        }
+    }
+
+    @Override
+    public int run() {
+        int contender = policy.whoWillEat();
+        policy.granted(contender);
+        policy.released(contender);
+        policy.ate(contender);
+        policy.waiting(contender);
+        return contender;
+    }
+}
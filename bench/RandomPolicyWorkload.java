@@ -0,0 +1,5 @@
+public class RandomPolicyWorkload extends PolicyWorkload {
+    public RandomPolicyWorkload() {
+        super(new RandomFairnessPolicy());
+    }
+}
@@ -0,0 +1,5 @@
+public class SerializedCodecWorkload extends CodecWorkload {
+    public SerializedCodecWorkload() {
+        super(new SerializedMessageCodec());
+    }
+}
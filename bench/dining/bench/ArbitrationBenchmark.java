@@ -0,0 +1,45 @@
+package dining.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fork arbitration: the fairness policy decision and a full REQUEST_FORK/RELEASE_FORK transition
+ * of the fork state, with a growing number of philosophers sharing the fork.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArbitrationBenchmark {
+    @Param({"2", "8", "64", "1024"})
+    public int contenders;
+
+    @Param({"AlternatedPolicyWorkload", "RandomPolicyWorkload", "AdaptivePolicyWorkload", "ForkTransitionWorkload"})
+    public String workload;
+
+    private Workload target;
+
+    @Setup
+    public void setup() {
+        target = Workload.load(workload, contenders);
+    }
+
+    @Benchmark
+    public int arbitrate() {
+        return target.run();
+    }
+}
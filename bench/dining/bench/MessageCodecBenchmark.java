@@ -0,0 +1,41 @@
+package dining.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the messages of one meal (request, grant, release) plus a SETUP.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+    @Param({"BinaryCodecWorkload", "SerializedCodecWorkload"})
+    public String workload;
+
+    private Workload target;
+
+    @Setup
+    public void setup() {
+        target = Workload.load(workload, 0);
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        return target.run();
+    }
+}
@@ -0,0 +1,32 @@
+package dining.bench;
+
+/**
+ * One measured operation of the dining code.
+ * <p>
+ * JMH refuses benchmarks in the default package, and code in a named package can't see the
+ * project's default package classes. So each benchmark loads a small default package adapter by
+ * name and drives it through this interface. Every JMH fork only ever sees one implementation,
+ * so the call is inlined away.
+ */
+public interface Workload {
+    /**
+     * @param contenders how many philosophers compete for the fork, ignored by workloads that don't use it
+     */
+    void setup(int contenders);
+
+    /**
+     * Run the operation once.
+     * @return something derived from the result for the blackhole, an int so boxing doesn't show up in allocation rates
+     */
+    int run();
+
+    static Workload load(String name, int contenders) {
+        try {
+            Workload workload = (Workload) Class.forName(name).getDeclaredConstructor().newInstance();
+            workload.setup(contenders);
+            return workload;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown workload: " + name, e);
+        }
+    }
+}
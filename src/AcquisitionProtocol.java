@@ -0,0 +1,43 @@
+/**
+ * How philosophers get hold of their forks, chosen per run on the main server with the
+ * {@code dining.protocol} system property and pushed to every node in SETUP.
+ */
+public enum AcquisitionProtocol {
+    /**
+     * Ask for all forks, and give everything back when the rest doesn't arrive in time.
+     */
+    TIMEOUT(0),
+    /**
+     * Chandy-Misra "hygienic" forks: forks are clean or dirty, requests are forwarded to the holder,
+     * and a dirty fork is handed over on request unless its holder is eating. Deadlock and
+     * starvation free, with no timeouts.
+     */
+    HYGIENIC(1),
+    /**
+     * A central waiter next to the main server hands out all forks of a meal at once, or queues
+     * the philosopher fairly. One request, one grant and one release per meal, and nobody ever holds
+     * part of its forks. The forks themselves stay idle.
+     */
+    WAITER(2);
+
+    private final byte code;
+
+    AcquisitionProtocol(int code) {
+        this.code = (byte) code;
+    }
+
+    byte getCode() {
+        return code;
+    }
+
+    static AcquisitionProtocol fromCode(byte code) {
+        for (AcquisitionProtocol protocol : values()) {
+            if (protocol.code == code) return protocol;
+        }
+        throw new IllegalArgumentException("Unknown acquisition protocol: " + code);
+    }
+
+    static AcquisitionProtocol fromSystemProperties() {
+        return valueOf(System.getProperty("dining.protocol", "timeout").toUpperCase());
+    }
+}
@@ -0,0 +1,190 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Favours whoever waited longest, net of how much of the fork it had lately, and never keeps a free
+ * fork for somebody who isn't asking. A waiter scores its wait so far minus its recent meals times its
+ * average hold: meals decay with a half-life, holds are a moving average. Anyone waiting longer than
+ * the maximum wait goes first, oldest first, so no wait lasts much beyond it plus one hold per
+ * contender. Newcomers start with the average recent meals and hold, so joining or coming back doesn't
+ * buy a run of meals. Deciding scans the waiters.
+ * <p>
+ * Time comes from the fork's {@link InputClock}, so a replayed journal decides alike.
+ */
+public class AdaptiveFairnessPolicy implements FairnessPolicy {
+    private static final long NONE = Long.MIN_VALUE;
+    // Weight of the latest hold in the moving average
+    private static final double HOLD_WEIGHT = 0.125;
+
+    private final LongSupplier clock;
+    private final long maxWaitNanos;
+    // Decay of recent meals per nanosecond
+    private final double decay;
+
+    private int[] meals = new int[2];
+    // Decayed meal count as of recentAt
+    private double[] recent = new double[2];
+    private long[] recentAt = new long[2];
+    private double[] holdNanos = new double[2];
+    private long[] grantedAt = new long[2];
+    private long[] waitingSince = new long[2];
+    // Waiting contenders, packed, and where each sits among them (-1 if not waiting)
+    private int[] waiters = new int[2];
+    private int[] slot = new int[2];
+    private int waiting;
+    private int size;
+
+    /**
+     * @param clock nanosecond time of the fork's inputs
+     * @param maxWaitNanos wait after which a contender goes before anyone younger
+     * @param halfLifeNanos how fast meals stop counting against a contender
+     */
+    public AdaptiveFairnessPolicy(LongSupplier clock, long maxWaitNanos, long halfLifeNanos) {
+        this.clock = clock;
+        this.maxWaitNanos = maxWaitNanos;
+        decay = Math.log(2) / halfLifeNanos;
+    }
+
+    @Override
+    public int addContender() {
+        if (size == meals.length) {
+            int length = size * 2;
+            meals = Arrays.copyOf(meals, length);
+            recent = Arrays.copyOf(recent, length);
+            recentAt = Arrays.copyOf(recentAt, length);
+            holdNanos = Arrays.copyOf(holdNanos, length);
+            grantedAt = Arrays.copyOf(grantedAt, length);
+            waitingSince = Arrays.copyOf(waitingSince, length);
+            waiters = Arrays.copyOf(waiters, length);
+            slot = Arrays.copyOf(slot, length);
+        }
+        long now = clock.getAsLong();
+        double recentSum = 0;
+        double holdSum = 0;
+        for (int other = 0; other < size; other++) {
+            recentSum += recent(other, now);
+            holdSum += holdNanos[other];
+        }
+        int contender = size++;
+        recent[contender] = contender == 0 ? 0 : recentSum / contender;
+        recentAt[contender] = now;
+        holdNanos[contender] = contender == 0 ? 0 : holdSum / contender;
+        grantedAt[contender] = NONE;
+        waitingSince[contender] = NONE;
+        slot[contender] = -1;
+        return contender;
+    }
+
+    @Override
+    public void ate(int contender) {
+        long now = clock.getAsLong();
+        meals[contender]++;
+        recent[contender] = recent(contender, now) + 1;
+        recentAt[contender] = now;
+    }
+
+    @Override
+    public void restore(int contender, int meals) {
+        this.meals[contender] = meals;
+    }
+
+    @Override
+    public int whoWillEat() {
+        long now = clock.getAsLong();
+        int best = -1;
+        double bestScore = 0;
+        int overdue = -1;
+        for (int i = 0; i < waiting; i++) {
+            int contender = waiters[i];
+            long since = waitingSince[contender];
+            if (now - since >= maxWaitNanos) {
+                if (overdue < 0 || since < waitingSince[overdue]) overdue = contender;
+                continue;
+            }
+            double score = (now - since) - recent(contender, now) * holdNanos[contender];
+            if (best < 0 || score > bestScore || score == bestScore && since < waitingSince[best]) {
+                best = contender;
+                bestScore = score;
+            }
+        }
+        if (overdue >= 0) return overdue;
+        return best >= 0 ? best : 0;
+    }
+
+    @Override
+    public int meals(int contender) {
+        return meals[contender];
+    }
+
+    @Override
+    public boolean picksAmongWaiting() {
+        return true;
+    }
+
+    @Override
+    public void waiting(int contender) {
+        if (slot[contender] >= 0) return;
+        waitingSince[contender] = clock.getAsLong();
+        slot[contender] = waiting;
+        waiters[waiting++] = contender;
+    }
+
+    @Override
+    public void granted(int contender) {
+        stopWaiting(contender);
+        grantedAt[contender] = clock.getAsLong();
+    }
+
+    @Override
+    public void released(int contender) {
+        if (grantedAt[contender] == NONE) return;
+        long hold = clock.getAsLong() - grantedAt[contender];
+        grantedAt[contender] = NONE;
+        holdNanos[contender] += HOLD_WEIGHT * (hold - holdNanos[contender]);
+    }
+
+    @Override
+    public void left(int contender) {
+        stopWaiting(contender);
+    }
+
+    @Override
+    public void writeState(ByteBuffer out) {
+        long now = clock.getAsLong();
+        out.putInt(size);
+        for (int contender = 0; contender < size; contender++) {
+            out.putDouble(recent(contender, now)).putLong(now);
+            out.putDouble(holdNanos[contender]);
+            out.putLong(grantedAt[contender]).putLong(waitingSince[contender]);
+        }
+    }
+
+    @Override
+    public void readState(ByteBuffer in) {
+        int contenders = in.getInt();
+        for (int contender = 0; contender < contenders; contender++) {
+            recent[contender] = in.getDouble();
+            recentAt[contender] = in.getLong();
+            holdNanos[contender] = in.getDouble();
+            grantedAt[contender] = in.getLong();
+            // The fork queued the waiters again, only when they started waiting is missing
+            long since = in.getLong();
+            if (slot[contender] >= 0) waitingSince[contender] = since;
+        }
+    }
+
+    private double recent(int contender, long now) {
+        return recent[contender] * Math.exp(-decay * (now - recentAt[contender]));
+    }
+
+    private void stopWaiting(int contender) {
+        int at = slot[contender];
+        if (at < 0) return;
+        int last = waiters[--waiting];
+        waiters[at] = last;
+        slot[last] = at;
+        slot[contender] = -1;
+        waitingSince[contender] = NONE;
+    }
+}
@@ -1,13 +1,78 @@
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Map;
+import java.util.Arrays;
 
+/**
+ * Favours whoever ate the least. Contenders sit in an indexed binary min-heap keyed by meal count,
+ * so the decision is O(1) and recording a meal O(log n).
+ */
 public class AlternatedFairnessPolicy implements FairnessPolicy {
+    private int[] meals = new int[2];
+    // heap[i] is a contender, position[contender] is where it sits in the heap
+    private int[] heap = new int[2];
+    private int[] position = new int[2];
+    private int size;
+
+    @Override
+    public int addContender() {
+        if (size == meals.length) {
+            meals = Arrays.copyOf(meals, size * 2);
+            heap = Arrays.copyOf(heap, size * 2);
+            position = Arrays.copyOf(position, size * 2);
+        }
+        int contender = size++;
+        heap[contender] = contender;
+        position[contender] = contender;
+        siftUp(contender);
+        return contender;
+    }
+
+    @Override
+    public void ate(int contender) {
+        meals[contender]++;
+        siftDown(position[contender]);
+    }
+
+    @Override
+    public void restore(int contender, int meals) {
+        this.meals[contender] = meals;
+        siftDown(position[contender]);
+    }
+
     @Override
-    public Socket whoWillEat(Map<Socket, Integer> philosophers) {
-        ArrayList<Map.Entry<Socket, Integer>> entries = new ArrayList<>(philosophers.entrySet());
-        entries.sort(Comparator.comparingInt(Map.Entry::getValue));
-        return entries.get(0).getKey();
+    public int whoWillEat() {
+        return heap[0];
+    }
+
+    @Override
+    public int meals(int contender) {
+        return meals[contender];
+    }
+
+    private void siftUp(int index) {
+        int contender = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (meals[heap[parent]] <= meals[contender]) break;
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(contender, index);
+    }
+
+    private void siftDown(int index) {
+        int contender = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) break;
+            if (child + 1 < size && meals[heap[child + 1]] < meals[heap[child]]) child++;
+            if (meals[contender] <= meals[heap[child]]) break;
+            place(heap[child], index);
+            index = child;
+        }
+        place(contender, index);
+    }
+
+    private void place(int contender, int index) {
+        heap[index] = contender;
+        position[contender] = index;
     }
 }
@@ -0,0 +1,85 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the rounds of a {@link AcquisitionProtocol#TIMEOUT} philosopher from what its forks tell it.
+ * Every grant is a sample: how long it took, and whether the fork first answered FORK_IN_USE, in which
+ * case the wait was a neighbour's hold. Moving averages of both give:
+ * <ul>
+ *     <li>the patience, how long to wait for the rest of the forks once one arrived: two neighbour
+ *     holds, and never less than the minimum doubled per failed round in a row, so a philosopher that
+ *     knows nothing yet doesn't give up over and over;</li>
+ *     <li>the pause after a failed round, before asking again: full jitter, uniform up to a ceiling
+ *     that starts at the hold times how often forks are in use, and doubles per failed round in a
+ *     row, so neighbours that failed together don't ask again together.</li>
+ * </ul>
+ * Both stay between {@code dining.backoff.min} and {@code dining.backoff.max} milliseconds, 1 and
+ * 3000 by default. A meal starts over from the minimum. Not thread safe.
+ */
+final class Backoff {
+    // Weight of the latest sample in the moving averages
+    private static final double WEIGHT = 0.125;
+    private static final int PATIENCE_HOLDS = 2;
+    private static final int MAX_DOUBLINGS = 30;
+
+    private final long minNanos;
+    private final long maxNanos;
+    // How long a fork in use took to arrive, 0 until one did
+    private double holdNanos;
+    // How often a request was answered FORK_IN_USE
+    private double inUse;
+    private int failures;
+
+    Backoff(long minNanos, long maxNanos) {
+        this.minNanos = minNanos;
+        this.maxNanos = Math.max(minNanos, maxNanos);
+    }
+
+    static Backoff fromSystemProperties() {
+        return new Backoff(TimeUnit.MILLISECONDS.toNanos(Long.getLong("dining.backoff.min", 1)),
+                TimeUnit.MILLISECONDS.toNanos(Long.getLong("dining.backoff.max", 3000)));
+    }
+
+    /**
+     * A fork arrived.
+     * @param waitedNanos since it was requested
+     * @param wasInUse whether the fork answered FORK_IN_USE first
+     */
+    void granted(long waitedNanos, boolean wasInUse) {
+        inUse += WEIGHT * ((wasInUse ? 1 : 0) - inUse);
+        if (!wasInUse) return;
+        holdNanos = holdNanos == 0 ? waitedNanos : holdNanos + WEIGHT * (waitedNanos - holdNanos);
+    }
+
+    /**
+     * @return how long to wait for the rest of the forks after the first one arrived
+     */
+    long patienceNanos() {
+        return clamp(Math.max(PATIENCE_HOLDS * holdNanos, doubled(minNanos)));
+    }
+
+    /**
+     * A round failed.
+     * @return how long to pause before asking again
+     */
+    long failed(SplittableRandom random) {
+        failures++;
+        long ceiling = clamp(doubled(Math.max(minNanos, inUse * holdNanos)) / 2);
+        return random.nextLong(ceiling + 1);
+    }
+
+    void succeeded() {
+        failures = 0;
+    }
+
+    /**
+     * @return the value doubled for every failed round in a row
+     */
+    private double doubled(double nanos) {
+        return nanos * (1L << Math.min(failures, MAX_DOUBLINGS));
+    }
+
+    private long clamp(double nanos) {
+        return (long) Math.max(minNanos, Math.min(maxNanos, nanos));
+    }
+}
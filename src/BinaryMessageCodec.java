@@ -0,0 +1,317 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact versioned framing for {@link Message}s.
+ * <p>
+ * Every frame starts with a fixed {@value #HEADER_SIZE} byte header: a magic number, the protocol
+ * version, the kind code and the body length. The body holds only the typed fields of that kind:
+ * <ul>
+ *     <li>RELEASE_FORK: how many meals the philosopher had with the fork since it got it (4 bytes)</li>
+ *     <li>SETUP: the acquisition protocol code, the seat of the philosopher, the host and port of the
+ *     waiter (empty host for the main server's), then the number of forks of the seat followed by the
+ *     host, port and fork id of every fork and whether the philosopher starts out holding it, and the
+ *     lease length in milliseconds</li>
+ *     <li>PHILOSOPHER_HELLO: philosopher name</li>
+ *     <li>FORK_HELLO: fork server host and port, first fork id, number of forks served there and the run
+ *     id of its journal (0 without one)</li>
+ *     <li>CONNECT_FORK: philosopher name, the id of the fork it wants to talk to, the acquisition
+ *     protocol code and whether the philosopher starts out holding the fork</li>
+ *     <li>START: the {@link LoadProfile}: think and eat distribution specs, seed, meal bound and
+ *     duration bound in milliseconds, forks per meal</li>
+ *     <li>ACQUIRE_FORKS: the number of forks wanted, then their positions in the SETUP fork list</li>
+ *     <li>FINISHED: philosopher name and how many meals it had</li>
+ *     <li>REGISTERED: the run id of the main server and whether the fork server rejoined a running table, and the
+ *     lease length in milliseconds</li>
+ * </ul>
+ * Strings are a 2 byte length followed by UTF-8 bytes. Every other kind has an empty body. A body
+ * that is cut short, too long or names an unknown kind or protocol is a {@link ProtocolException}.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    static final short MAGIC = (short) 0xD1E5;
+    static final byte VERSION = 11;
+    static final int HEADER_SIZE = 8;
+    static final int MAX_BODY_SIZE = 64 * 1024;
+
+    @Override
+    public MessageOutput newOutput(OutputStream out) {
+        OutputStream buffered = new BufferedOutputStream(out);
+        return new MessageOutput() {
+            private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+            @Override
+            public void write(Message message) throws IOException {
+                writeBuffered(message);
+                buffered.flush();
+            }
+
+            @Override
+            public void writeBuffered(Message message) throws IOException {
+                while (true) {
+                    try {
+                        buffer.clear();
+                        encode(message, buffer);
+                        break;
+                    } catch (BufferOverflowException e) {
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                    }
+                }
+                buffered.write(buffer.array(), 0, buffer.position());
+            }
+
+            @Override
+            public void flush() throws IOException {
+                buffered.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                buffered.close();
+            }
+        };
+    }
+
+    @Override
+    public MessageInput newInput(InputStream in) {
+        DataInputStream data = new DataInputStream(in);
+        return new MessageInput() {
+            private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            private ByteBuffer body = ByteBuffer.allocate(256);
+
+            @Override
+            public Message read() throws IOException {
+                try {
+                    data.readFully(header.array());
+                } catch (EOFException e) {
+                    return null;
+                }
+                int length = bodyLength(header, 0);
+                if (length > body.capacity()) body = ByteBuffer.allocate(Math.max(length, body.capacity() * 2));
+                body.clear().limit(length);
+                data.readFully(body.array(), 0, length);
+                return decodeBody(header.get(3), body);
+            }
+
+            @Override
+            public void close() throws IOException {
+                data.close();
+            }
+        };
+    }
+
+    /**
+     * Writes a whole frame at the buffer position.
+     * @throws BufferOverflowException when the buffer is too small for the frame
+     */
+    static void encode(Message message, ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putShort(MAGIC).put(VERSION).put(message.getKind().getCode()).putInt(0);
+
+        Object payload = message.getMessage();
+        switch (message.getKind()) {
+            case RELEASE_FORK:
+                buffer.putInt((int) payload);
+                break;
+            case SETUP: {
+                Object[] setup = (Object[]) payload;
+                buffer.put(((AcquisitionProtocol) setup[0]).getCode()).putInt((int) setup[1]);
+                putString(buffer, (String) setup[2]);
+                buffer.putInt((int) setup[3]);
+                String[] hosts = (String[]) setup[4];
+                int[] ports = (int[]) setup[5];
+                int[] ids = (int[]) setup[6];
+                boolean[] holds = (boolean[]) setup[7];
+                buffer.putInt(hosts.length);
+                for (int i = 0; i < hosts.length; i++) {
+                    putString(buffer, hosts[i]);
+                    buffer.putInt(ports[i]).putInt(ids[i]);
+                    putBoolean(buffer, holds[i]);
+                }
+                buffer.putLong((long) setup[8]);
+                break;
+            }
+            case PHILOSOPHER_HELLO:
+                putString(buffer, (String) payload);
+                break;
+            case FORK_HELLO: {
+                Object[] endpoint = (Object[]) payload;
+                putString(buffer, (String) endpoint[0]);
+                buffer.putInt((int) endpoint[1]).putInt((int) endpoint[2]).putInt((int) endpoint[3]).putLong((long) endpoint[4]);
+                break;
+            }
+            case CONNECT_FORK: {
+                Object[] connect = (Object[]) payload;
+                putString(buffer, (String) connect[0]);
+                buffer.putInt((int) connect[1]);
+                buffer.put(((AcquisitionProtocol) connect[2]).getCode());
+                putBoolean(buffer, (boolean) connect[3]);
+                break;
+            }
+            case START: {
+                Object[] load = (Object[]) payload;
+                putString(buffer, (String) load[0]);
+                putString(buffer, (String) load[1]);
+                buffer.putLong((long) load[2]).putInt((int) load[3]).putLong((long) load[4]).putInt((int) load[5]);
+                break;
+            }
+            case ACQUIRE_FORKS: {
+                int[] forks = (int[]) payload;
+                buffer.putInt(forks.length);
+                for (int fork : forks) buffer.putInt(fork);
+                break;
+            }
+            case FINISHED: {
+                Object[] finished = (Object[]) payload;
+                putString(buffer, (String) finished[0]);
+                buffer.putInt((int) finished[1]);
+                break;
+            }
+            case REGISTERED: {
+                Object[] registered = (Object[]) payload;
+                buffer.putLong((long) registered[0]);
+                putBoolean(buffer, (boolean) registered[1]);
+                buffer.putLong((long) registered[2]);
+                break;
+            }
+            default:
+                break;
+        }
+        buffer.putInt(start + 4, buffer.position() - start - HEADER_SIZE);
+    }
+
+    /**
+     * Reads one frame from the buffer position, for readers that receive bytes in arbitrary chunks.
+     * @return the message, or null (leaving the buffer untouched) if the frame is not complete yet
+     */
+    static Message decode(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) return null;
+        int length = bodyLength(buffer, start);
+        if (buffer.remaining() < HEADER_SIZE + length) return null;
+
+        int limit = buffer.limit();
+        buffer.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length);
+        Message message = decodeBody(buffer.get(start + 3), buffer);
+        buffer.limit(limit).position(start + HEADER_SIZE + length);
+        return message;
+    }
+
+    /**
+     * Validates the frame header found at the given index.
+     * @return the body length announced by the header
+     */
+    static int bodyLength(ByteBuffer buffer, int start) throws ProtocolException {
+        short magic = buffer.getShort(start);
+        byte version = buffer.get(start + 2);
+        int length = buffer.getInt(start + 4);
+        if (magic != MAGIC) throw new ProtocolException("Bad frame magic: " + Integer.toHexString(magic & 0xFFFF));
+        if (version != VERSION) throw new ProtocolException("Unsupported protocol version: " + version);
+        if (length < 0 || length > MAX_BODY_SIZE) throw new ProtocolException("Bad frame length: " + length);
+        return length;
+    }
+
+    /**
+     * Reads a whole body, from the buffer position to its limit.
+     * @param code the kind code of the frame header
+     */
+    static Message decodeBody(byte code, ByteBuffer body) throws ProtocolException {
+        Message message;
+        try {
+            message = decodeBody(Message.Kind.fromCode(code), body);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated body of message kind " + code);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException(e.getMessage());
+        }
+        if (body.hasRemaining())
+            throw new ProtocolException(body.remaining() + " bytes left over after a " + message.getKind() + " body");
+        return message;
+    }
+
+    private static Message decodeBody(Message.Kind kind, ByteBuffer body) throws ProtocolException {
+        switch (kind) {
+            case RELEASE_FORK: {
+                int meals = body.getInt();
+                if (meals < 0) throw new ProtocolException("Negative meal count " + meals);
+                return new Message(meals, kind);
+            }
+            case SETUP: {
+                AcquisitionProtocol protocol = AcquisitionProtocol.fromCode(body.get());
+                int seat = body.getInt();
+                String waiterHost = getString(body);
+                int waiterPort = body.getInt();
+                // A fork takes at least a length, a port, an id and a flag
+                int count = count(body, 11);
+                String[] hosts = new String[count];
+                int[] ports = new int[count];
+                int[] ids = new int[count];
+                boolean[] holds = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    hosts[i] = getString(body);
+                    ports[i] = body.getInt();
+                    ids[i] = body.getInt();
+                    holds[i] = getBoolean(body);
+                }
+                return new Message(new Object[] {protocol, seat, waiterHost, waiterPort, hosts, ports, ids, holds, body.getLong()}, kind);
+            }
+            case PHILOSOPHER_HELLO:
+                return new Message(getString(body), kind);
+            case FORK_HELLO:
+                return new Message(new Object[] {getString(body), body.getInt(), body.getInt(), body.getInt(), body.getLong()}, kind);
+            case CONNECT_FORK:
+                return new Message(new Object[] {
+                        getString(body), body.getInt(), AcquisitionProtocol.fromCode(body.get()), getBoolean(body)}, kind);
+            case START:
+                return new Message(new Object[] {getString(body), getString(body), body.getLong(), body.getInt(), body.getLong(), body.getInt()}, kind);
+            case ACQUIRE_FORKS: {
+                int[] forks = new int[count(body, 4)];
+                for (int i = 0; i < forks.length; i++) forks[i] = body.getInt();
+                return new Message(forks, kind);
+            }
+            case FINISHED:
+                return new Message(new Object[] {getString(body), body.getInt()}, kind);
+            case REGISTERED:
+                return new Message(new Object[] {body.getLong(), getBoolean(body), body.getLong()}, kind);
+            default:
+                return new Message(kind);
+        }
+    }
+
+    /**
+     * Reads the length of a list, checking that the rest of the body can hold it.
+     * @param minSize the fewest bytes an element takes
+     */
+    private static int count(ByteBuffer body, int minSize) throws ProtocolException {
+        int count = body.getInt();
+        if (count < 0 || count > body.remaining() / minSize) throw new ProtocolException("Bad list length: " + count);
+        return count;
+    }
+
+    static void putBoolean(ByteBuffer buffer, boolean value) {
+        buffer.put((byte) (value ? 1 : 0));
+    }
+
+    static boolean getBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,18 @@
+import java.io.Closeable;
+
+/**
+ * A message connection between two nodes, independent of how the messages travel.
+ */
+public interface Connection extends Closeable {
+    MessageInput in();
+
+    MessageOutput out();
+
+    /**
+     * @return the address of the other end as seen from here, which tells the nodes of one machine
+     * apart from the others. Nodes of one process are all on localhost.
+     */
+    default String peerHost() {
+        return "localhost";
+    }
+}
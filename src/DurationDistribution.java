@@ -0,0 +1,30 @@
+import java.util.SplittableRandom;
+
+/**
+ * How long a philosopher thinks or eats. Specs are {@code zero}, {@code constant:<ms>},
+ * {@code uniform:<max ms>} or {@code exponential:<mean ms>}; milliseconds may be fractional.
+ */
+interface DurationDistribution {
+    /**
+     * @return the next duration in nanoseconds
+     */
+    long nextNanos(SplittableRandom random);
+
+    static DurationDistribution parse(String spec) {
+        String[] parts = spec.split(":", 2);
+        double millis = parts.length > 1 ? Double.parseDouble(parts[1]) : 0;
+        long nanos = (long) (millis * 1_000_000);
+        switch (parts[0]) {
+            case "zero":
+                return random -> 0;
+            case "constant":
+                return random -> nanos;
+            case "uniform":
+                return random -> (long) (random.nextDouble() * nanos);
+            case "exponential":
+                return random -> (long) (-nanos * Math.log(1 - random.nextDouble()));
+            default:
+                throw new IllegalArgumentException("Unknown duration distribution: " + spec);
+        }
+    }
+}
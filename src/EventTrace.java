@@ -0,0 +1,264 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact binary record of the protocol events one node saw, for {@link TraceAnalyzer}. Forks record
+ * what philosophers asked and what they answered, philosophers what they asked, got and did.
+ * <p>
+ * The file starts with a header: magic, version, node name, whether the node is a fork, and the wall
+ * clock and {@link System#nanoTime()} at opening, which place the node's monotonic timestamps on a
+ * timeline shared with the other nodes. Each record is a type byte, with the high bit as its flag,
+ * the nanoseconds since the previous record as a variable-length number, then the philosopher and the
+ * fork as indexes of a name table. A name is written once, as a NAME record, before its first use.
+ * <p>
+ * Tracing is on when {@code dining.trace.dir} names a directory, a fresh one per run; each node process
+ * writes {@code <node>.<pid>.trace} there. Records are buffered and flushed about once per second and on
+ * close, so a node that crashes loses its last second. Thread safe.
+ */
+final class EventTrace implements Closeable {
+    enum Event {
+        /** A philosopher starts asking for the forks of a meal. */
+        HUNGRY,
+        REQUEST,
+        GRANT,
+        IN_USE,
+        /** Flagged if the philosopher ate. */
+        RELEASE,
+        LEAVE,
+        REVOKE,
+        /** A philosopher got all the forks of a meal. */
+        EAT
+    }
+
+    private static final int MAGIC = 0xD1_7E_A5_E5;
+    private static final int VERSION = 1;
+    private static final int NAME = 0x7F;
+    private static final int FLAG = 0x80;
+    private static final long FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> names = new HashMap<>();
+    private long last;
+    private long lastFlush;
+    private boolean failed;
+
+    private EventTrace(Path path, String node, boolean fork) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        last = lastFlush = System.nanoTime();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(node);
+        out.writeBoolean(fork);
+        out.writeLong(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+        out.writeLong(last);
+    }
+
+    /**
+     * @param node unique name of the node, also the file name
+     * @return the trace, or null if tracing is off or the file can't be created
+     */
+    static EventTrace open(String node, boolean fork) {
+        String directory = System.getProperty("dining.trace.dir");
+        if (directory == null || directory.isEmpty()) return null;
+        try {
+            Files.createDirectories(Paths.get(directory));
+            // A restarted node keeps the trace of its earlier process
+            String file = node + "." + ProcessHandle.current().pid() + ".trace";
+            return new EventTrace(Paths.get(directory, file), node, fork);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Record a fork message sent or received by a node. Other messages are not traced.
+     */
+    void message(String philosopher, String fork, Message message) {
+        switch (message.getKind()) {
+            case REQUEST_FORK:
+                record(Event.REQUEST, philosopher, fork);
+                break;
+            case FORK_ACQUIRED:
+                record(Event.GRANT, philosopher, fork);
+                break;
+            case FORK_IN_USE:
+                record(Event.IN_USE, philosopher, fork);
+                break;
+            case RELEASE_FORK:
+                record(Event.RELEASE, philosopher, fork, (int) message.getMessage() > 0);
+                break;
+            case LEAVE_FORK:
+                record(Event.LEAVE, philosopher, fork);
+                break;
+            case FORK_REVOKED:
+                record(Event.REVOKE, philosopher, fork);
+                break;
+        }
+    }
+
+    void record(Event event, String philosopher, String fork) {
+        record(event, philosopher, fork, false);
+    }
+
+    synchronized void record(Event event, String philosopher, String fork, boolean flag) {
+        if (failed) return;
+        try {
+            int philosopherIndex = index(philosopher);
+            int forkIndex = index(fork);
+            long now = System.nanoTime();
+            out.writeByte(event.ordinal() | (flag ? FLAG : 0));
+            writeVarLong(Math.max(0, now - last));
+            writeVarLong(philosopherIndex);
+            writeVarLong(forkIndex);
+            last = Math.max(last, now);
+            if (now - lastFlush >= FLUSH_NANOS) {
+                lastFlush = now;
+                out.flush();
+            }
+        } catch (IOException e) {
+            failed = true;
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (failed) return;
+        // Late events, like forks handed over while leaving, are dropped
+        failed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Index of a name, writing it first if it is new. Null, for events without a fork, is 0.
+     */
+    private int index(String name) throws IOException {
+        if (name == null) return 0;
+        Integer index = names.get(name);
+        if (index != null) return index;
+        index = names.size() + 1;
+        names.put(name, index);
+        out.writeByte(NAME);
+        out.writeUTF(name);
+        return index;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads one trace file back, record by record.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final String node;
+        private final boolean fork;
+        // Wall clock nanoseconds of the current record
+        private long time;
+        private final List<String> names = new ArrayList<>();
+        private Event event;
+        private boolean flag;
+        private String philosopher;
+        private String forkName;
+
+        Reader(Path path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            if (in.readInt() != MAGIC) throw new IOException("Not an event trace: " + path);
+            if (in.readInt() != VERSION) throw new IOException("Unknown event trace version: " + path);
+            node = in.readUTF();
+            fork = in.readBoolean();
+            long wallClock = in.readLong();
+            // The nanoTime at opening is the origin of the first delta
+            time = wallClock;
+            in.readLong();
+            names.add(null);
+        }
+
+        /**
+         * Move to the next record.
+         * @return false at the end of the trace, or at a record cut short by a crash
+         */
+        boolean next() throws IOException {
+            try {
+                int type;
+                while ((type = in.readUnsignedByte()) == NAME) names.add(in.readUTF());
+                event = Event.values()[type & ~FLAG];
+                flag = (type & FLAG) != 0;
+                time += readVarLong();
+                philosopher = names.get((int) readVarLong());
+                forkName = names.get((int) readVarLong());
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        String node() {
+            return node;
+        }
+
+        boolean isFork() {
+            return fork;
+        }
+
+        /**
+         * @return when the current record happened, in nanoseconds since the epoch
+         */
+        long time() {
+            return time;
+        }
+
+        Event event() {
+            return event;
+        }
+
+        boolean flag() {
+            return flag;
+        }
+
+        String philosopher() {
+            return philosopher;
+        }
+
+        String fork() {
+            return forkName;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * How philosophers and forks run their blocking loops, chosen with the {@code dining.threads}
+ * system property ({@code platform}, the default, or {@code virtual}).
+ * <p>
+ * Virtual threads need Java 21. They are looked up reflectively so the project still builds and
+ * runs in platform mode on older JDKs.
+ */
+public enum ExecutionMode {
+    PLATFORM {
+        @Override
+        Thread start(String name, Runnable task) {
+            Thread thread = new Thread(task, name);
+            thread.start();
+            return thread;
+        }
+
+        @Override
+        Executor newExecutor(String name, int platformThreads) {
+            return Executors.newFixedThreadPool(platformThreads, task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    },
+    VIRTUAL {
+        @Override
+        Thread start(String name, Runnable task) {
+            Thread thread = VirtualThreads.FACTORY.newThread(task);
+            thread.setName(name);
+            thread.start();
+            return thread;
+        }
+
+        @Override
+        Executor newExecutor(String name, int platformThreads) {
+            return task -> start(name, task);
+        }
+    };
+
+    abstract Thread start(String name, Runnable task);
+
+    /**
+     * An executor for short blocking tasks: a fixed pool of daemon platform threads, or a virtual
+     * thread per task.
+     */
+    abstract Executor newExecutor(String name, int platformThreads);
+
+    static ExecutionMode fromSystemProperties() {
+        return valueOf(System.getProperty("dining.threads", "platform").toUpperCase());
+    }
+
+    private static final class VirtualThreads {
+        private static final ThreadFactory FACTORY;
+
+        static {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                FACTORY = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads need Java 21 or newer", e);
+            }
+        }
+    }
+}
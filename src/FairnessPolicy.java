@@ -1,6 +1,113 @@
-import java.net.Socket;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
+/**
+ * Decides which philosopher gets a fork. Contenders are the dense indices handed out by
+ * {@link #addContender()}; the policy keeps its own per-contender meal counters and updates them
+ * incrementally, so a decision never allocates.
+ * <p>
+ * The fork also tells the policy who is waiting, who holds it and who left, for policies that weigh
+ * more than meal counts. Such a policy picks among the waiting philosophers only, and then the fork
+ * grants it that way on every release, not only for a free fork.
+ */
 public interface FairnessPolicy {
-    Socket whoWillEat (Map<Socket, Integer> philosophers);
+    /**
+     * Register a new contender with no meals.
+     * @return its index, counting up from 0
+     */
+    int addContender();
+
+    /**
+     * Record that the contender ate.
+     */
+    void ate(int contender);
+
+    /**
+     * @return the index of the contender that should eat next. Unless the policy
+     * {@link #picksAmongWaiting() picks among the waiting} it may name one that isn't asking, and the
+     * fork then goes to whoever asks rather than being kept for it.
+     */
+    int whoWillEat();
+
+    int meals(int contender);
+
+    /**
+     * Set the meal count of a contender that has none yet, when a fork recovers its state.
+     */
+    default void restore(int contender, int meals) {
+        for (int meal = 0; meal < meals; meal++) ate(contender);
+    }
+
+    /**
+     * @return whether {@link #whoWillEat()} only picks contenders that are {@link #waiting(int)}, as
+     * every policy but alternated does
+     */
+    default boolean picksAmongWaiting() {
+        return false;
+    }
+
+    /**
+     * The contender started waiting for the fork.
+     */
+    default void waiting(int contender) {
+    }
+
+    /**
+     * The contender got the fork, and is no longer waiting.
+     */
+    default void granted(int contender) {
+    }
+
+    /**
+     * The contender no longer holds the fork, whether or not it ate.
+     */
+    default void released(int contender) {
+    }
+
+    /**
+     * The contender stopped dining, and is no longer waiting.
+     */
+    default void left(int contender) {
+    }
+
+    /**
+     * Write what the policy keeps beyond meal counts, for a journal snapshot.
+     */
+    default void writeState(ByteBuffer out) {
+    }
+
+    /**
+     * Read back what {@link #writeState(ByteBuffer)} wrote, after the contenders were restored.
+     */
+    default void readState(ByteBuffer in) {
+    }
+
+    /**
+     * @param name {@code alternated}, {@code random} or {@code adaptive}
+     * @param clock nanosecond time for policies that weigh time
+     */
+    static FairnessPolicy create(String name, LongSupplier clock, SplittableRandom random) {
+        switch (name) {
+            case "alternated":
+                return new AlternatedFairnessPolicy();
+            case "random":
+                return new RandomFairnessPolicy(random);
+            case "adaptive":
+                long maxWait = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dining.policy.maxwait", 1000));
+                long halfLife = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dining.policy.halflife", 10000));
+                return new AdaptiveFairnessPolicy(clock, maxWait, halfLife);
+            default:
+                throw new IllegalArgumentException("Unknown fairness policy: " + name);
+        }
+    }
+
+    /**
+     * The policy named by {@code dining.policy}, {@code alternated} by default.
+     * @param random seeds the {@code random} policy, journaled forks seed it from their journal
+     */
+    static FairnessPolicy fromSystemProperties(LongSupplier clock, SplittableRandom random) {
+        return create(System.getProperty("dining.policy", "alternated"), clock, random);
+    }
 }
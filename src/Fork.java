@@ -4,64 +4,197 @@
  */
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class Fork implements Serializable {
-    // Main server socket connection
-    transient private Socket mainConn;
-    transient private ObjectInputStream mainIn;
-    transient private ObjectOutputStream mainOut;
+/**
+ * Serves a single fork to every philosopher that needs it, two in a ring but any number in other
+ * {@link TableTopology topologies}, with a thread per philosopher connection.
+ * <p>
+ * The fork state has a single writer: connection threads only read messages and queue them as
+ * commands, and one decision thread applies the commands to the {@link ForkProtocol} in arrival order.
+ * Replies go to an {@link Outbox} per philosopher and are written by other threads, so a slow
+ * philosopher socket never holds up a decision, such as passing the fork on after a release.
+ * <p>
+ * With {@code dining.journal.dir} set, every input of the protocol goes to a {@link ForkJournal} first.
+ * A fork server restarted with the same arguments rejoins the table, replays the journal and lets the
+ * philosophers reconnect, keeping its queue and fairness counters.
+ * <p>
+ * A grant is a lease, renewed by anything the holder sends, heartbeats included. A holder not heard
+ * from for the lease length set by the main server loses the fork to the next waiter, so a crashed
+ * philosopher doesn't block its neighbours forever.
+ * <p>
+ * Run on its own, a fork server asks the main server to leave the table when its process is shut
+ * down, and waits until the main server stopped it.
+ */
+public class Fork {
+    private static final int WRITER_THREADS = 4;
+    private static final long LEAVE_TIMEOUT_SECONDS = 120;
+
+    /**
+     * An input of the fork state, run by the decision thread.
+     */
+    private interface Command {
+        void run() throws IOException;
+    }
+
+    /**
+     * A registered philosopher. It keeps its place in the protocol when it reconnects. Only touched by
+     * the decision thread.
+     */
+    private static final class Contender {
+        private final String name;
+        // Null until it connects, after replaying the journal
+        private Outbox outbox;
+        // When the philosopher last sent anything, which renews its lease
+        private long lastHeard = System.nanoTime();
+
+        private Contender(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // Main server connection
+    private Connection mainConn;
+    // Held while writing to the main server, a lock rather than a monitor so virtual threads don't pin
+    private final ReentrantLock mainSendLock = new ReentrantLock();
 
     // Fork server info
-    private String hostname = "localhost"; // TODO change IP to global IP
+    // Only names the fork, the main server tells philosophers the address the fork connected from
+    private String hostname = "localhost";
     private int forkServerPort;
-    transient private ServerSocket forkServerConnection;
+    private Transport.Listener forkServerConnection;
 
-    transient private Socket leftConn;
-    transient private ObjectInputStream leftIn;
-    transient private ObjectOutputStream leftOut;
+    // Added by the acceptor thread, in connection order
+    private final List<Connection> philosophers = new CopyOnWriteArrayList<>();
 
-    transient private Socket rightConn;
-    transient private ObjectInputStream rightIn;
-    transient private ObjectOutputStream rightOut;
+    // Many connection threads queue commands, the decision thread alone runs them
+    private final BlockingQueue<Command> commands = new LinkedBlockingQueue<>();
+    private boolean deciding = true;
+    private Executor writers;
 
-    transient FairnessPolicy policy;
+    // Created when the first philosopher says which acquisition protocol the table runs
+    private ForkProtocol<Contender> protocol;
+    private AcquisitionProtocol acquisitionProtocol;
+    // By name, in registration order
+    private final Map<String, Contender> contenders = new LinkedHashMap<>();
+    private final ForkProtocol.Replies<Contender> replies = this::reply;
+    // Time of the input being decided, for the fairness policy and the journal
+    private final InputClock clock = new InputClock();
+    // Null unless dining.journal.dir is set
+    private ForkJournal journal;
+    // Null unless dining.trace.dir is set
+    private EventTrace trace;
+    private String endpoint;
 
-    transient private boolean acquired;
-    transient private Queue<ObjectOutputStream> queue;
-
-    private Map<Socket, Integer> eatTimes;
+    private ExecutionMode executionMode;
+    private Histogram queueDepth;
+    private RateCounter revokedLeases;
+    // 0 when grants never expire
+    private long leaseNanos;
+    private volatile boolean stopping;
+    // Counted down once the fork server is done with the main server
+    private final CountDownLatch left = new CountDownLatch(1);
 
     /**
      * Connect to main server and starts the fork server.
      * @param mainServerHostname address of the main server
      * @param mainServerPort main server port
      * @param forkServerPort the fork server port
+     * @param transport how to reach the main server and accept philosophers
      */
-    private Fork(String mainServerHostname, int mainServerPort, int forkServerPort) {
+    Fork(String mainServerHostname, int mainServerPort, int forkServerPort, Transport transport) {
+        this(mainServerHostname, mainServerPort, forkServerPort, transport, false);
+    }
+
+    /**
+     * @param leaveOnShutdown whether to ask the main server to leave the table when the process is shut down
+     */
+    Fork(String mainServerHostname, int mainServerPort, int forkServerPort, Transport transport, boolean leaveOnShutdown) {
+        if (leaveOnShutdown) Runtime.getRuntime().addShutdownHook(new Thread(this::leaveTable, "Leave Table"));
         try {
             this.forkServerPort = forkServerPort;
-            forkServerConnection = new ServerSocket(forkServerPort);
-            queue = new LinkedList<>();
-            eatTimes = new HashMap<>(2);
-            policy = new AlternatedFairnessPolicy();
+            forkServerConnection = transport.listen(forkServerPort);
+            executionMode = ExecutionMode.fromSystemProperties();
+            writers = executionMode.newExecutor("Fork Writer", WRITER_THREADS);
+            endpoint = new ForkEndpoint(hostname, forkServerPort, 0).toString();
+            queueDepth = Metrics.histogram(Metrics.FORK_QUEUE_DEPTH, endpoint);
+            revokedLeases = Metrics.counter(Metrics.REVOKED_LEASES, endpoint);
+            journal = ForkJournal.open("fork-" + forkServerPort + ".journal", clock);
 
-            // Start main server connection and pass self information details as this
-            mainConn = new Socket(mainServerHostname, mainServerPort);
-            mainOut = new ObjectOutputStream(mainConn.getOutputStream());
-            mainOut.writeObject(this);
+            // Start main server connection and announce where philosophers can reach this fork
+            mainConn = transport.connect(mainServerHostname, mainServerPort);
+            long journalRun = journal == null ? 0 : journal.runId();
+            mainConn.out().write(new Message(new Object[] {hostname, forkServerPort, 0, 1, journalRun}, Message.Kind.FORK_HELLO));
+            Message registered = mainConn.in().read();
+            if (registered == null) {
+                Log.info("Main server rejected the fork");
+                cleanup();
+                return;
+            }
+            Object[] run = (Object[]) registered.getMessage();
+            leaseNanos = TimeUnit.MILLISECONDS.toNanos((long) run[2]);
+            if (journal != null) {
+                if ((boolean) run[1]) rejoin();
+                else journal.reset((long) run[0]);
+                journal.setState(this::snapshot);
+            }
+            // Opened after replaying, the replayed decisions were traced by the crashed process
+            trace = EventTrace.open("fork-" + forkServerPort, true);
+            executionMode.start("Fork Decision Thread", this::decide);
 
             listenMainServer();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            left.countDown();
+        }
+    }
+
+    /**
+     * Shutdown hook: ask the main server to leave the table, and wait until it stopped this fork.
+     */
+    private void leaveTable() {
+        if (stopping || mainConn == null) return;
+        Log.info("Fork %s asks to leave the table ...", endpoint);
+        sendToMainServer(new Message(Message.Kind.LEAVE_TABLE));
+        try {
+            if (!left.await(LEAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                Log.warn("Fork %s was not stopped within %d s", endpoint, LEAVE_TIMEOUT_SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        Log.flush();
+    }
+
+    /**
+     * Write to the main server, which the listener and the shutdown hook share.
+     */
+    private void sendToMainServer(Message message) {
+        mainSendLock.lock();
+        try {
+            mainConn.out().write(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            mainSendLock.unlock();
         }
     }
 
@@ -70,125 +203,266 @@ public class Fork implements Serializable {
      */
     private void listenMainServer() {
         try {
-            mainIn = new ObjectInputStream(mainConn.getInputStream());
-
             Message message;
             boolean done = false;
-            while (!done && (message = (Message) mainIn.readObject()) != null) {
+            while (!done && (message = mainConn.in().read()) != null) {
                 switch (message.getKind()) {
                     case STOP:
                         done = true;
+                        CompletableFuture<Integer> meals = new CompletableFuture<>();
+                        commands.add(() -> meals.complete(served()));
+                        sendToMainServer(new Message(new Object[] {endpoint, meals.join()}, Message.Kind.FINISHED));
                         break;
                     case SETUP:
                         break;
                     case START:
-                        leftConn = forkServerConnection.accept();
-                        rightConn = forkServerConnection.accept();
-                        new Thread(() -> listenPhilosopher(leftConn)).start();
-                        new Thread(() -> listenPhilosopher(rightConn)).start();
+                        // Accept aside, so STOP still gets through if philosophers never show up (waiter protocol)
+                        executionMode.start("Philosopher Acceptor Thread", this::acceptPhilosophers);
                         break;
                 }
             }
             cleanup();
-        } catch (IOException | ClassNotFoundException e) {
+            boolean stopped = done;
+            commands.add(() -> {
+                deciding = false;
+                if (stopped && journal != null) journal.delete();
+                if (trace != null) trace.close();
+            });
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Handle philosopher connection
-     *
-     * @param philosopher which philosopher to handle
+     * Recover the state of a crashed run from the journal, before the decision thread starts. The table
+     * is already dining, so philosophers are accepted right away.
      */
-    private void listenPhilosopher(Socket philosopher) {
-        ObjectInputStream in = null;
-        ObjectOutputStream out = null;
+    private void rejoin() throws IOException {
+        journal.replay(new ForkJournal.Replay() {
+            @Override
+            public void restore(int fork, AcquisitionProtocol acquisition, ByteBuffer state) {
+                acquisitionProtocol = acquisition;
+                protocol = ForkProtocol.create(acquisition, newPolicy());
+                protocol.restore(state, name -> contenders.computeIfAbsent(name, Contender::new));
+            }
 
+            @Override
+            public void register(int fork, String name, AcquisitionProtocol acquisition, boolean holds) {
+                Fork.this.register(name, acquisition, holds);
+            }
+
+            @Override
+            public void reconnect(int fork, String name, boolean holds) throws IOException {
+                protocol.reconnect(contenders.get(name), holds, replies);
+            }
+
+            @Override
+            public void revoke(int fork, String name) throws IOException {
+                protocol.revoke(contenders.get(name), replies);
+            }
+
+            @Override
+            public void handle(int fork, String name, Message message) throws IOException {
+                protocol.handle(contenders.get(name), message, replies);
+            }
+        });
+        Log.info("Rejoined the table with %d philosophers and %d meals served", contenders.size(), served());
+        executionMode.start("Philosopher Acceptor Thread", this::acceptPhilosophers);
+    }
+
+    private void acceptPhilosophers() {
         try {
-            in = new ObjectInputStream(philosopher.getInputStream());
-            out = new ObjectOutputStream(philosopher.getOutputStream());
-            String philosopherName = (String) in.readObject();
-            if (philosopher == leftConn) {
-                leftIn = in;
-                leftOut = out;
-                System.out.println(String.format("Left philosopher connected: %s!", philosopherName));
-            } else {
-                rightIn = in;
-                rightOut = out;
-                System.out.println(String.format("Right philosopher connected: %s!", philosopherName));
+            while (true) {
+                Connection philosopher = forkServerConnection.accept();
+                // Closing the listener doesn't stop a blocked accept right away
+                if (stopping) {
+                    philosopher.close();
+                    return;
+                }
+                philosophers.add(philosopher);
+                executionMode.start("Philosopher Listener Thread " + philosophers.size(), () -> listenPhilosopher(philosopher));
             }
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            if (!stopping) e.printStackTrace();
         }
+    }
 
-        assert in != null;
-        assert out != null;
-
-        eatTimes.put(philosopher, 0);
+    /**
+     * Handle philosopher connection: queue whatever it sends for the decision thread.
+     *
+     * @param philosopher which philosopher to handle
+     */
+    private void listenPhilosopher(Connection philosopher) {
+        MessageInput in = philosopher.in();
 
         try {
+            Message connect = in.read();
+            if (connect == null || connect.getKind() != Message.Kind.CONNECT_FORK) {
+                // Gone before its hello, or not a philosopher
+                if (connect != null) Log.warn("Rejecting connection with hello %s", connect);
+                philosopher.close();
+                return;
+            }
+            Object[] hello = (Object[]) connect.getMessage();
+            String name = (String) hello[0];
+            AcquisitionProtocol acquisition = (AcquisitionProtocol) hello[2];
+            boolean holds = (boolean) hello[3];
+            Outbox outbox = new Outbox(philosopher, writers);
+            commands.add(() -> connect(name, acquisition, holds, outbox));
+
             Message message;
-            while ((message = (Message) in.readObject()) != null) {
-                synchronized (this) {
-                    switch (message.getKind()) {
-                        case REQUEST_FORK:
-                            if (philosopher == policy.whoWillEat(eatTimes)) {
-                                acquired = true;
-                                out.writeObject(new Message(Message.Kind.FORK_ACQUIRED));
-                            } else {
-                                out.writeObject(new Message(Message.Kind.FORK_IN_USE));
-                                queue.add(out);
-                            }
-                            break;
-                        case RELEASE_FORK:
-                            acquired = false;
-                            boolean gotToEat = (boolean) message.getMessage();
-                            if (gotToEat) {
-                                int times = eatTimes.get(philosopher);
-                                eatTimes.put(philosopher, times + 1);
-                            } else queue.add(out);
-
-                            if (!queue.isEmpty()) {
-                                queue.poll().writeObject(new Message(Message.Kind.FORK_ACQUIRED));
-                                acquired = true;
-                            }
-                            System.out.println(String.format("[%2d, %2d]", eatTimes.get(leftConn), eatTimes.get(rightConn)));
-                            break;
-                    }
-                }
+            while ((message = in.read()) != null) {
+                Message received = message;
+                commands.add(() -> receive(name, received));
             }
 
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+        } catch (ProtocolException e) {
+            Log.warn("Dropping a philosopher connection that sent a malformed message: %s", e.getMessage());
+            closeQuietly(philosopher);
+        } catch (IOException e) {
+            if (!stopping) e.printStackTrace();
         }
     }
 
-    private void cleanup() {
-        System.out.println("Cleaning up ...");
+    /**
+     * Run commands in arrival order until the fork stops and, with leases, check them a few times per
+     * lease. The protocol, contenders, journal and counters are only ever touched here once dining.
+     */
+    private void decide() {
+        long checkNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), leaseNanos / 4);
+        long nextLeaseCheck = System.nanoTime() + checkNanos;
+        while (deciding) {
+            try {
+                Command command = leaseNanos > 0 ? commands.poll(checkNanos, TimeUnit.NANOSECONDS) : commands.take();
+                if (command != null) command.run();
+                if (leaseNanos > 0 && System.nanoTime() - nextLeaseCheck >= 0) {
+                    nextLeaseCheck = System.nanoTime() + checkNanos;
+                    expireLeases();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // Only this command failed, the others still get decided
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
         try {
-            leftIn.close();
-            rightIn.close();
+            connection.close();
+        } catch (IOException ignored) {}
+    }
 
-            leftOut.close();
-            rightOut.close();
+    private void connect(String name, AcquisitionProtocol acquisition, boolean holds, Outbox outbox) throws IOException {
+        clock.tick();
+        Contender contender = contenders.get(name);
+        if (contender == null) {
+            if (journal != null) journal.register(0, name, acquisition, holds);
+            contender = register(name, acquisition, holds);
+            contender.outbox = outbox;
+            Log.info("Philosopher connected: %s!", name);
+        } else {
+            // Either side restarted, the philosopher says what it holds
+            contender.outbox = outbox;
+            contender.lastHeard = System.nanoTime();
+            if (journal != null) journal.reconnect(0, name, holds);
+            protocol.reconnect(contender, holds, replies);
+            Log.info("Philosopher reconnected: %s!", name);
+        }
+    }
 
-            mainIn.close();
-            mainOut.close();
+    private void receive(String name, Message message) throws IOException {
+        Contender contender = contenders.get(name);
+        contender.lastHeard = System.nanoTime();
+        if (message.getKind() == Message.Kind.HEARTBEAT) return;
+        clock.tick();
+        if (journal != null) journal.handle(0, name, message);
+        if (trace != null) trace.message(name, endpoint, message);
+        protocol.handle(contender, message, replies);
+        if (message.getKind() == Message.Kind.REQUEST_FORK) queueDepth.record(protocol.waiting());
+        if (message.getKind() == Message.Kind.RELEASE_FORK && Log.isEnabled(Log.Level.TRACE))
+            Log.trace("Meals per philosopher: %s", eatTimes());
+    }
 
-            mainConn.close();
-            rightConn.close();
+    /**
+     * Revoke the fork from a holder whose lease expired.
+     */
+    private void expireLeases() throws IOException {
+        Contender holder = protocol == null ? null : protocol.holder();
+        if (holder == null || System.nanoTime() - holder.lastHeard < leaseNanos) return;
+        Log.warn("Lease of %s expired, revoking the fork", holder);
+        clock.tick();
+        if (journal != null) journal.revoke(0, holder.name);
+        protocol.revoke(holder, replies);
+        revokedLeases.increment();
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    private FairnessPolicy newPolicy() {
+        return FairnessPolicy.fromSystemProperties(clock, journal == null ? new SplittableRandom() : journal.random(0));
+    }
+
+    /**
+     * Register a philosopher, creating the protocol for the first one.
+     */
+    private Contender register(String name, AcquisitionProtocol acquisition, boolean holds) {
+        if (protocol == null) {
+            acquisitionProtocol = acquisition;
+            protocol = ForkProtocol.create(acquisition, newPolicy());
         }
+        Contender contender = contenders.computeIfAbsent(name, Contender::new);
+        protocol.register(contender, holds);
+        return contender;
+    }
+
+    /**
+     * Send to a philosopher. One that is not connected at the moment gets nothing; it tells the fork
+     * what it holds when it reconnects, which undoes a lost grant.
+     */
+    private void reply(Contender philosopher, Message message) {
+        if (trace != null) trace.message(philosopher.name, endpoint, message);
+        if (philosopher.outbox != null) philosopher.outbox.post(message);
     }
 
-    int getForkServerPort() {
-        return forkServerPort;
+    /**
+     * Journal state: the whole protocol.
+     */
+    private void snapshot(ForkJournal journal) {
+        if (protocol != null) journal.snapshot(0, acquisitionProtocol, out -> protocol.snapshot(out, contender -> contender.name));
     }
 
-    String getHostname() {
-        return hostname;
+    /**
+     * @return the meals of every philosopher with this fork, as the protocol counted them
+     */
+    private int served() {
+        int served = 0;
+        for (Contender contender : contenders.values()) served += protocol.eatTimes(contender);
+        return served;
+    }
+
+    /**
+     * @return how often every connected philosopher ate with this fork
+     */
+    private String eatTimes() {
+        StringBuilder times = new StringBuilder("[");
+        for (Contender philosopher : contenders.values()) {
+            if (times.length() > 1) times.append(", ");
+            times.append(String.format("%2d", protocol.eatTimes(philosopher)));
+        }
+        return times.append(']').toString();
+    }
+
+    private void cleanup() {
+        Log.info("Cleaning up ...");
+        stopping = true;
+        try {
+            for (Connection philosopher : philosophers) philosopher.close();
+            mainConn.close();
+            forkServerConnection.close();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     @SuppressWarnings("unused")
@@ -200,6 +474,6 @@ public class Fork implements Serializable {
         String mainServerAddress = args[0];
         int mainServerPort = Integer.parseInt(args[1]);
         int forkServerPort = Integer.parseInt(args[2]);
-        new Fork(mainServerAddress, mainServerPort, forkServerPort);
+        new Fork(mainServerAddress, mainServerPort, forkServerPort, Transport.fromSystemProperties(), true);
     }
 }
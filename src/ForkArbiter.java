@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Grant/queue state of a single fork for the {@link AcquisitionProtocol#TIMEOUT} protocol, shared by
+ * the blocking {@link Fork} server and the {@link ForkHost}. A released fork goes to the first queued
+ * philosopher, or to whoever the policy picks if it {@link FairnessPolicy#picksAmongWaiting() picks
+ * among the waiting}.
+ *
+ * @param <C> how the caller identifies a philosopher, usually its connection
+ */
+class ForkArbiter<C> implements ForkProtocol<C> {
+    private final FairnessPolicy policy;
+    // Contender index of each philosopher in the policy
+    private final Map<C, Integer> indices;
+    private final List<C> byIndex = new ArrayList<>(4);
+    // Waiting philosophers in arrival order. Each is queued at most once, even when asking again after
+    // reconnecting, so the queue never outgrows the contenders
+    private final Deque<C> queue;
+    // Contender indices in the queue
+    private final BitSet queued = new BitSet();
+    // Contenders that stopped dining (LEAVE_FORK) or lost their lease, a newcomer isn't levelled with them
+    private final BitSet departed = new BitSet();
+    private boolean acquired;
+    private C holder;
+
+    ForkArbiter(FairnessPolicy policy) {
+        this.policy = policy;
+        indices = new HashMap<>(4);
+        queue = new ArrayDeque<>();
+    }
+
+    /**
+     * A philosopher joining a fork that already served meals starts level with the fewest meals of the
+     * others still dining, like the one it replaces, rather than owed every meal they had.
+     */
+    @Override
+    public void register(C philosopher, boolean holdsInitially) {
+        int index = add(philosopher);
+        int level = Integer.MAX_VALUE;
+        for (int other = 0; other < index; other++) {
+            if (!departed.get(other)) level = Math.min(level, policy.meals(other));
+        }
+        if (level != Integer.MAX_VALUE && level > 0) policy.restore(index, level);
+    }
+
+    @Override
+    public void handle(C philosopher, Message message, Replies<C> replies) throws IOException {
+        switch (message.getKind()) {
+            case REQUEST_FORK:
+                replies.send(philosopher, request(philosopher) ? FORK_ACQUIRED : FORK_IN_USE);
+                break;
+            case RELEASE_FORK:
+                C next = release(philosopher, (int) message.getMessage() > 0);
+                if (next != null) replies.send(next, FORK_ACQUIRED);
+                break;
+            case LEAVE_FORK:
+                next = leave(philosopher);
+                if (next != null) replies.send(next, FORK_ACQUIRED);
+                break;
+        }
+    }
+
+    /**
+     * Handle a REQUEST_FORK. A free fork goes to the philosopher unless the policy picks somebody else
+     * who is queued for it: anyone not asking may not ask for a while, and a policy that draws again on
+     * every request would otherwise keep the fork free with its neighbours all queued.
+     * @return true if the fork was granted, false if the philosopher was queued
+     */
+    boolean request(C philosopher) {
+        int index = indices.get(philosopher);
+        // Back after its lease expired
+        departed.clear(index);
+        if (acquired && holder == philosopher) return true;
+        if (!queued.get(index)) enqueue(philosopher);
+        if (acquired) return false;
+        int favoured = policy.whoWillEat();
+        if (index != favoured && queued.get(favoured)) return false;
+        queue.remove(philosopher);
+        queued.clear(index);
+        grant(philosopher);
+        return true;
+    }
+
+    /**
+     * Handle a RELEASE_FORK.
+     * @param gotToEat whether the philosopher ate while holding the fork
+     * @return the philosopher the fork was granted to next, or null if nobody is waiting
+     */
+    C release(C philosopher, boolean gotToEat) {
+        // A release of a fork the philosopher lost when reconnecting or when its lease expired
+        if (!acquired || holder != philosopher) return null;
+        acquired = false;
+        int index = indices.get(philosopher);
+        policy.released(index);
+        if (gotToEat) policy.ate(index);
+        else enqueue(philosopher);
+
+        return grantNext();
+    }
+
+    /**
+     * Handle a LEAVE_FORK: the philosopher won't ask again. It is dropped from the queue, a grant it
+     * could not have used yet is taken back, and whoever was queued waiting for its turn gets a free
+     * fork now.
+     * @return the philosopher the fork was granted to, or null
+     */
+    C leave(C philosopher) {
+        int index = indices.get(philosopher);
+        departed.set(index);
+        policy.left(index);
+        if (queued.get(index)) {
+            queue.remove(philosopher);
+            queued.clear(index);
+        }
+        if (acquired && holder != philosopher) return null;
+        if (acquired) policy.released(index);
+        return grantNext();
+    }
+
+    @Override
+    public void reconnect(C philosopher, boolean holds, Replies<C> replies) throws IOException {
+        boolean held = acquired && holder == philosopher;
+        if (held && !holds) {
+            // Whether it ate with the fork got lost too, the meal isn't counted
+            acquired = false;
+            policy.released(indices.get(philosopher));
+            C next = grantNext();
+            if (next != null) replies.send(next, FORK_ACQUIRED);
+        } else if (!held && holds) {
+            if (acquired) {
+                // Its lease expired while it was away
+                replies.send(philosopher, FORK_REVOKED);
+                return;
+            }
+            int index = indices.get(philosopher);
+            if (queued.get(index)) {
+                queue.remove(philosopher);
+                queued.clear(index);
+            }
+            grant(philosopher);
+        }
+    }
+
+    /**
+     * Until the philosopher asks again, it may be gone for good, so its turn is not waited for.
+     */
+    @Override
+    public void revoke(C philosopher, Replies<C> replies) throws IOException {
+        departed.set(indices.get(philosopher));
+        ForkProtocol.super.revoke(philosopher, replies);
+    }
+
+    @Override
+    public void snapshot(ByteBuffer out, Function<C, String> names) {
+        out.putInt(byIndex.size());
+        for (int index = 0; index < byIndex.size(); index++) {
+            BinaryMessageCodec.putString(out, names.apply(byIndex.get(index)));
+            out.putInt(policy.meals(index));
+            BinaryMessageCodec.putBoolean(out, departed.get(index));
+        }
+        out.putInt(queue.size());
+        for (C philosopher : queue) out.putInt(indices.get(philosopher));
+        out.putInt(acquired ? indices.get(holder) : -1);
+        policy.writeState(out);
+    }
+
+    @Override
+    public void restore(ByteBuffer in, Function<String, C> philosophers) {
+        for (int contenders = in.getInt(); contenders > 0; contenders--) {
+            C philosopher = philosophers.apply(BinaryMessageCodec.getString(in));
+            int index = add(philosopher);
+            policy.restore(index, in.getInt());
+            if (BinaryMessageCodec.getBoolean(in)) departed.set(index);
+        }
+        for (int waiting = in.getInt(); waiting > 0; waiting--) enqueue(byIndex.get(in.getInt()));
+        int holderIndex = in.getInt();
+        if (holderIndex >= 0) grant(byIndex.get(holderIndex));
+        policy.readState(in);
+    }
+
+    private int add(C philosopher) {
+        int index = policy.addContender();
+        indices.put(philosopher, index);
+        byIndex.add(philosopher);
+        return index;
+    }
+
+    private void enqueue(C philosopher) {
+        int index = indices.get(philosopher);
+        queue.add(philosopher);
+        queued.set(index);
+        policy.waiting(index);
+    }
+
+    private void grant(C philosopher) {
+        acquired = true;
+        holder = philosopher;
+        policy.granted(indices.get(philosopher));
+    }
+
+    /**
+     * Hand the free fork to the next waiting philosopher, if any.
+     */
+    private C grantNext() {
+        acquired = false;
+        holder = null;
+        if (queue.isEmpty()) return null;
+        C next = policy.picksAmongWaiting() ? byIndex.get(policy.whoWillEat()) : queue.peekFirst();
+        // A policy that knows who waits always picks somebody queued
+        if (!queued.get(indices.get(next))) next = queue.peekFirst();
+        if (next == queue.peekFirst()) queue.pollFirst();
+        else queue.remove(next);
+        queued.clear(indices.get(next));
+        grant(next);
+        return next;
+    }
+
+    @Override
+    public C holder() {
+        return acquired ? holder : null;
+    }
+
+    @Override
+    public Integer eatTimes(C philosopher) {
+        Integer index = indices.get(philosopher);
+        return index == null ? null : policy.meals(index);
+    }
+
+    @Override
+    public int waiting() {
+        return queue.size();
+    }
+
+    boolean isAcquired() {
+        return acquired;
+    }
+}
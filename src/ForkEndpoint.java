@@ -0,0 +1,55 @@
+/**
+ * Where a philosopher finds a fork: the fork server address plus the fork id, since a single
+ * {@link ForkHost} serves many forks on one port. Also names a resource of the {@link LockClient}.
+ */
+public class ForkEndpoint {
+    private final String hostname;
+    private final int port;
+    private final int id;
+
+    ForkEndpoint(String hostname, int port, int id) {
+        this.hostname = hostname;
+        this.port = port;
+        this.id = id;
+    }
+
+    String getHostname() {
+        return hostname;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * @param endpoint as printed by {@link #toString()}, {@code <host>:<port>#<id>}
+     */
+    static ForkEndpoint parse(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        int hash = endpoint.lastIndexOf('#');
+        if (colon < 0 || hash < colon) throw new IllegalArgumentException("Not a fork endpoint: " + endpoint);
+        return new ForkEndpoint(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1, hash)),
+                Integer.parseInt(endpoint.substring(hash + 1)));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ForkEndpoint)) return false;
+        ForkEndpoint endpoint = (ForkEndpoint) other;
+        return hostname.equals(endpoint.hostname) && port == endpoint.port && id == endpoint.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return (hostname.hashCode() * 31 + port) * 31 + id;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d#%d", hostname, port, id);
+    }
+}
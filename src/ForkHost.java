@@ -0,0 +1,609 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves many forks from a single process and port, using non-blocking channels instead of a
+ * thread per philosopher connection.
+ * <p>
+ * An acceptor reads the CONNECT_FORK hello of every new connection and hands the connection to the
+ * event loop that owns the requested fork ({@code forkId % loops}). Every fork is therefore only ever
+ * touched by one thread and its {@link ForkProtocol} needs no locking. Replies are buffered per
+ * connection and flushed once per loop iteration.
+ * <p>
+ * Frames are decoded from partial reads, so a fork host only speaks the binary codec.
+ * <p>
+ * With {@code dining.journal.dir} set, every event loop journals the inputs of its forks to its own
+ * {@link ForkJournal}. A fork host restarted with the same arguments rejoins the table and replays them.
+ * <p>
+ * Grants are leases like on a {@link Fork}: each loop wakes up a few times per lease and revokes forks
+ * whose holder has been silent for longer.
+ */
+public class ForkHost {
+    private static final int BUFFER_SIZE = 512;
+
+    // Main server connection
+    private Connection mainConn;
+
+    // Fork host info
+    // Only names the forks, the main server tells philosophers the address the host connected from
+    private String hostname = "localhost";
+    private int port;
+    private ServerSocketChannel server;
+    private Selector acceptSelector;
+
+    private HostedFork[] forks;
+    private EventLoop[] loops;
+    private volatile boolean running = true;
+    // Whether the main server stopped the table, only then the journals go
+    private volatile boolean stoppedCleanly;
+    // Releases after eating, over all hosted forks
+    private final LongAdder served = new LongAdder();
+    // 0 when grants never expire
+    private long leaseNanos;
+
+    /**
+     * Start the fork host and register all of its forks at the main server.
+     * @param mainServerHostname address of the main server
+     * @param mainServerPort main server port
+     * @param port the port all hosted forks are served on
+     * @param forkCount how many forks to host
+     * @param loopCount how many event loops share the forks
+     */
+    private ForkHost(String mainServerHostname, int mainServerPort, int port, int forkCount, int loopCount) {
+        try {
+            MessageCodec codec = MessageCodec.fromSystemProperties();
+            if (!(codec instanceof BinaryMessageCodec))
+                throw new IllegalStateException("A fork host needs the binary codec");
+
+            this.port = port;
+            // A fork's policy reads the clock of the loop owning it
+            InputClock[] clocks = new InputClock[loopCount];
+            for (int i = 0; i < loopCount; i++) clocks[i] = new InputClock();
+
+            loops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++)
+                loops[i] = new EventLoop(i, clocks[i], ForkJournal.open("forkhost-" + port + "-" + i + ".journal", clocks[i]));
+
+            forks = new HostedFork[forkCount];
+            for (int id = 0; id < forkCount; id++) {
+                forks[id] = new HostedFork(id, new ForkEndpoint(hostname, port, id).toString(), clocks[id % loopCount],
+                        loops[id % loopCount].journal);
+            }
+
+            // Bound before registering, philosophers connect as soon as the table is complete
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            acceptSelector = Selector.open();
+            server.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            // Register every hosted fork at once
+            mainConn = new TcpTransport(codec).connect(mainServerHostname, mainServerPort);
+            long journalRun = loops[0].journal == null ? 0 : loops[0].journal.runId();
+            mainConn.out().write(new Message(new Object[] {hostname, port, 0, forkCount, journalRun}, Message.Kind.FORK_HELLO));
+            Message registered = mainConn.in().read();
+            if (registered == null) {
+                Log.info("Main server rejected the fork host");
+                running = false;
+                server.close();
+                return;
+            }
+            Object[] run = (Object[]) registered.getMessage();
+            leaseNanos = TimeUnit.MILLISECONDS.toNanos((long) run[2]);
+            if ((boolean) run[1]) rejoin((long) run[0]);
+            for (EventLoop loop : loops) {
+                if (loop.journal == null) continue;
+                if (!(boolean) run[1]) loop.journal.reset((long) run[0]);
+                loop.journal.setState(loop::snapshot);
+            }
+
+            // Loops only start now, replaying needs the forks to itself
+            for (EventLoop loop : loops) new Thread(loop, "Fork Host Loop " + loop.index).start();
+            new Thread(this::accept, "Fork Host Acceptor").start();
+
+            listenMainServer();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Recover the forks of a crashed run from the journals of all loops.
+     */
+    private void rejoin(long runId) throws IOException {
+        // Nobody is connected yet, philosophers learn what they missed when they reconnect
+        ForkProtocol.Replies<Contender> nobody = (philosopher, message) -> {};
+        ForkJournal.Replay replay = new ForkJournal.Replay() {
+            @Override
+            public void restore(int fork, AcquisitionProtocol protocol, ByteBuffer state) {
+                HostedFork hosted = forks[fork];
+                hosted.create(protocol);
+                hosted.protocol.restore(state, name -> hosted.contenders.computeIfAbsent(name, Contender::new));
+            }
+
+            @Override
+            public void register(int fork, String name, AcquisitionProtocol protocol, boolean holds) {
+                forks[fork].register(name, protocol, holds);
+            }
+
+            @Override
+            public void reconnect(int fork, String name, boolean holds) throws IOException {
+                HostedFork hosted = forks[fork];
+                hosted.protocol.reconnect(hosted.contenders.get(name), holds, nobody);
+            }
+
+            @Override
+            public void revoke(int fork, String name) throws IOException {
+                HostedFork hosted = forks[fork];
+                hosted.protocol.revoke(hosted.contenders.get(name), nobody);
+            }
+
+            @Override
+            public void handle(int fork, String name, Message message) throws IOException {
+                HostedFork hosted = forks[fork];
+                hosted.protocol.handle(hosted.contenders.get(name), message, nobody);
+            }
+        };
+        for (EventLoop loop : loops) {
+            if (loop.journal == null) continue;
+            if (loop.journal.runId() == runId) loop.journal.replay(replay);
+            else Log.warn("Journal of fork host loop %d is from another run, its forks start over", loop.index);
+        }
+
+        int philosophers = 0;
+        for (HostedFork fork : forks) {
+            if (fork.protocol == null) continue;
+            philosophers += fork.contenders.size();
+            for (Contender contender : fork.contenders.values()) served.add(fork.protocol.eatTimes(contender));
+        }
+        Log.info("Rejoined the table with %d fork connections and %d meals served", philosophers, served.intValue());
+    }
+
+    /**
+     * Listen for main server commands. Philosophers are accepted from the start, so only STOP matters.
+     */
+    private void listenMainServer() throws IOException {
+        Message message;
+        boolean done = false;
+        while (!done && (message = mainConn.in().read()) != null) {
+            if (message.getKind() == Message.Kind.STOP) {
+                mainConn.out().write(new Message(new Object[] {
+                        new ForkEndpoint(hostname, port, 0).toString(), served.intValue()}, Message.Kind.FINISHED));
+                done = true;
+            }
+        }
+        stoppedCleanly = done;
+        cleanup();
+    }
+
+    /**
+     * Accept philosophers and route each one to the loop owning the fork named in its hello.
+     */
+    private void accept() {
+        try {
+            while (running) {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = server.accept();
+                        if (channel == null) continue;
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        channel.register(acceptSelector, SelectionKey.OP_READ, new Peer(channel));
+                    } else if (key.isReadable()) {
+                        readHello(key, (Peer) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    private void readHello(SelectionKey key, Peer peer) {
+        try {
+            if (!peer.fill()) {
+                peer.close();
+                return;
+            }
+            peer.in.flip();
+            Message hello = BinaryMessageCodec.decode(peer.in);
+            peer.in.compact();
+            if (hello == null) return;
+
+            Object[] connect = hello.getKind() == Message.Kind.CONNECT_FORK ? (Object[]) hello.getMessage() : null;
+            int forkId = connect == null ? -1 : (int) connect[1];
+            if (forkId < 0 || forkId >= forks.length) {
+                Log.warn("Rejecting connection with hello %s", hello);
+                peer.close();
+                return;
+            }
+
+            key.cancel();
+            peer.name = (String) connect[0];
+            peer.fork = forks[forkId];
+            peer.protocol = (AcquisitionProtocol) connect[2];
+            peer.holds = (boolean) connect[3];
+            loops[forkId % loops.length].adopt(peer);
+        } catch (ProtocolException e) {
+            Log.warn("Dropping a connection that sent a malformed hello: %s", e.getMessage());
+            peer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            peer.close();
+        }
+    }
+
+    private void cleanup() {
+        Log.info("Cleaning up ...");
+        running = false;
+        try {
+            acceptSelector.wakeup();
+            for (EventLoop loop : loops) loop.selector.wakeup();
+            server.close();
+
+            mainConn.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A hosted fork. Only touched by the owning event loop.
+     */
+    private static final class HostedFork {
+        private final int id;
+        // Created when the first philosopher says which acquisition protocol the table runs
+        private ForkProtocol<Contender> protocol;
+        private AcquisitionProtocol acquisitionProtocol;
+        private final Map<String, Contender> contenders = new HashMap<>(4);
+        private final Histogram queueDepth;
+        private final RateCounter revokedLeases;
+        private final InputClock clock;
+        // The journal of the loop owning the fork, null unless journaling
+        private final ForkJournal journal;
+
+        private HostedFork(int id, String endpoint, InputClock clock, ForkJournal journal) {
+            this.id = id;
+            this.clock = clock;
+            this.journal = journal;
+            queueDepth = Metrics.histogram(Metrics.FORK_QUEUE_DEPTH, endpoint);
+            revokedLeases = Metrics.counter(Metrics.REVOKED_LEASES, endpoint);
+        }
+
+        private void create(AcquisitionProtocol acquisition) {
+            acquisitionProtocol = acquisition;
+            protocol = ForkProtocol.create(acquisition,
+                    FairnessPolicy.fromSystemProperties(clock, journal == null ? new SplittableRandom() : journal.random(id)));
+        }
+
+        private Contender register(String name, AcquisitionProtocol acquisition, boolean holds) {
+            if (protocol == null) create(acquisition);
+            Contender contender = contenders.computeIfAbsent(name, Contender::new);
+            protocol.register(contender, holds);
+            return contender;
+        }
+    }
+
+    /**
+     * A philosopher registered at a hosted fork. It keeps its place in the protocol when it reconnects.
+     */
+    private static final class Contender {
+        private final String name;
+        // Null while the philosopher is not connected
+        private Peer peer;
+        // When the philosopher last sent anything, which renews its lease
+        private long lastHeard = System.nanoTime();
+
+        private Contender(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A philosopher connection with its own read and write buffers.
+     */
+    private static final class Peer {
+        private final SocketChannel channel;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        private SelectionKey key;
+        private HostedFork fork;
+        private Contender contender;
+        private String name;
+        private AcquisitionProtocol protocol;
+        // Whether the philosopher holds the fork, according to its hello
+        private boolean holds;
+        private boolean dirty;
+
+        private Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Read whatever is available, growing the buffer when a frame doesn't fit.
+         * @return false once the peer closed the connection
+         */
+        private boolean fill() throws IOException {
+            if (!in.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                in = bigger.put(in);
+            }
+            return channel.read(in) >= 0;
+        }
+
+        private void append(Message message) {
+            while (true) {
+                int position = out.position();
+                try {
+                    BinaryMessageCodec.encode(message, out);
+                    return;
+                } catch (BufferOverflowException e) {
+                    out.position(position);
+                    ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+                    out.flip();
+                    out = bigger.put(out);
+                }
+            }
+        }
+
+        /**
+         * Write as much of the pending replies as the socket takes.
+         */
+        private void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean pending = out.hasRemaining();
+            out.compact();
+            key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void close() {
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Single threaded loop owning a subset of the forks and all of their connections.
+     */
+    private final class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<Peer> adopted = new ConcurrentLinkedQueue<>();
+        private final Queue<Peer> dirty = new ArrayDeque<>();
+        private final ForkProtocol.Replies<Contender> replies = (contender, message) -> {
+            Peer peer = contender.peer;
+            if (peer != null && peer.channel.isOpen()) send(peer, message);
+        };
+        // Time of the input being handled, shared by the forks of this loop
+        private final InputClock clock;
+        // Null unless dining.journal.dir is set
+        private final ForkJournal journal;
+        private long nextLeaseCheck = System.nanoTime();
+
+        private EventLoop(int index, InputClock clock, ForkJournal journal) throws IOException {
+            this.index = index;
+            this.clock = clock;
+            this.journal = journal;
+            selector = Selector.open();
+        }
+
+        /**
+         * Journal state: the protocol of every fork of this loop.
+         */
+        private void snapshot(ForkJournal journal) {
+            for (int id = index; id < forks.length; id += loops.length) {
+                HostedFork fork = forks[id];
+                if (fork.protocol != null)
+                    journal.snapshot(id, fork.acquisitionProtocol, out -> fork.protocol.snapshot(out, contender -> contender.name));
+            }
+        }
+
+        /**
+         * Hand over a connection whose hello was already read. Called from the acceptor thread.
+         */
+        private void adopt(Peer peer) {
+            adopted.add(peer);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                long checkMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(leaseNanos) / 4);
+                while (running) {
+                    if (leaseNanos > 0) selector.select(checkMillis);
+                    else selector.select();
+
+                    Peer peer;
+                    while ((peer = adopted.poll()) != null) register(peer);
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        peer = (Peer) key.attachment();
+                        if (key.isValid() && key.isWritable()) markDirty(peer);
+                        if (key.isValid() && key.isReadable()) read(peer);
+                    }
+
+                    if (leaseNanos > 0 && System.nanoTime() - nextLeaseCheck >= 0) {
+                        nextLeaseCheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(checkMillis);
+                        expireLeases();
+                    }
+
+                    while ((peer = dirty.poll()) != null) {
+                        peer.dirty = false;
+                        try {
+                            if (peer.channel.isOpen()) peer.flush();
+                        } catch (IOException e) {
+                            disconnect(peer);
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.keys()) ((Peer) key.attachment()).close();
+                selector.close();
+                if (stoppedCleanly && journal != null) journal.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void register(Peer peer) {
+            try {
+                peer.key = peer.channel.register(selector, SelectionKey.OP_READ, peer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                peer.close();
+                return;
+            }
+            HostedFork fork = peer.fork;
+            Contender contender = fork.contenders.get(peer.name);
+            clock.tick();
+            if (contender == null) {
+                if (journal != null) journal.register(fork.id, peer.name, peer.protocol, peer.holds);
+                contender = fork.register(peer.name, peer.protocol, peer.holds);
+                contender.peer = peer;
+                peer.contender = contender;
+                Log.info("Philosopher %s connected to fork %d!", peer.name, fork.id);
+            } else {
+                // Either side restarted, the philosopher says what it holds
+                if (contender.peer != null) contender.peer.close();
+                contender.peer = peer;
+                peer.contender = contender;
+                contender.lastHeard = System.nanoTime();
+                if (journal != null) journal.reconnect(fork.id, peer.name, peer.holds);
+                try {
+                    fork.protocol.reconnect(contender, peer.holds, replies);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                Log.info("Philosopher %s reconnected to fork %d!", peer.name, fork.id);
+            }
+
+            // Requests may have arrived together with the hello
+            handleFrames(peer);
+        }
+
+        private void read(Peer peer) {
+            try {
+                if (!peer.fill()) {
+                    disconnect(peer);
+                    return;
+                }
+            } catch (IOException e) {
+                disconnect(peer);
+                return;
+            }
+            handleFrames(peer);
+        }
+
+        private void handleFrames(Peer peer) {
+            try {
+                peer.in.flip();
+                Message message;
+                while ((message = BinaryMessageCodec.decode(peer.in)) != null) {
+                    peer.contender.lastHeard = System.nanoTime();
+                    if (message.getKind() == Message.Kind.HEARTBEAT) continue;
+                    clock.tick();
+                    if (journal != null) journal.handle(peer.fork.id, peer.name, message);
+                    peer.fork.protocol.handle(peer.contender, message, replies);
+                    if (message.getKind() == Message.Kind.RELEASE_FORK) served.add((int) message.getMessage());
+                    if (message.getKind() == Message.Kind.REQUEST_FORK) peer.fork.queueDepth.record(peer.fork.protocol.waiting());
+                }
+                peer.in.compact();
+            } catch (ProtocolException e) {
+                // Only this philosopher's connection is broken, the loop goes on serving the others
+                Log.warn("Dropping %s, it sent a malformed message: %s", peer.name, e.getMessage());
+                disconnect(peer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                disconnect(peer);
+            }
+        }
+
+        /**
+         * Revoke the forks of this loop whose holder's lease expired.
+         */
+        private void expireLeases() {
+            long now = System.nanoTime();
+            for (int id = index; id < forks.length; id += loops.length) {
+                HostedFork fork = forks[id];
+                Contender holder = fork.protocol == null ? null : fork.protocol.holder();
+                if (holder == null || now - holder.lastHeard < leaseNanos) continue;
+                Log.warn("Lease of %s expired, revoking fork %d", holder, id);
+                clock.tick();
+                if (journal != null) journal.revoke(id, holder.name);
+                try {
+                    fork.protocol.revoke(holder, replies);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                fork.revokedLeases.increment();
+            }
+        }
+
+        private void send(Peer peer, Message message) {
+            peer.append(message);
+            markDirty(peer);
+        }
+
+        private void markDirty(Peer peer) {
+            if (peer.dirty) return;
+            peer.dirty = true;
+            dirty.add(peer);
+        }
+
+        private void disconnect(Peer peer) {
+            peer.close();
+            if (peer.contender != null && peer.contender.peer == peer) peer.contender.peer = null;
+            Log.info("Philosopher %s left fork %d", peer.name, peer.fork.id);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public void setHostname(String hostname) {
+        this.hostname = hostname;
+    }
+
+    public static void main(String[] args) {
+        String mainServerAddress = args[0];
+        int mainServerPort = Integer.parseInt(args[1]);
+        int port = Integer.parseInt(args[2]);
+        int forkCount = Integer.parseInt(args[3]);
+        int loopCount = args.length > 4 ? Integer.parseInt(args[4]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        new ForkHost(mainServerAddress, mainServerPort, port, forkCount, loopCount);
+    }
+}
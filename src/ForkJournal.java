@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped append-only journal of the fork state of a {@link Fork} or of one {@link ForkHost}
+ * event loop, so a restarted fork server recovers its queues and fairness counters instead of forcing
+ * the whole table to restart.
+ * <p>
+ * The file holds a header and two regions. The active region starts with a snapshot of every fork,
+ * followed by the inputs of the forks in the order they were handled: registrations, reconnections,
+ * expired leases and philosopher messages. Replaying the snapshot and the inputs through {@link ForkProtocol}
+ * rebuilds the exact state. Every {@code dining.journal.snapshot} inputs, or when the region is full,
+ * a new snapshot goes to the other region, which becomes active by a single header write.
+ * <p>
+ * A record is its body length, the CRC-32 of the body, then the body: record type, fork id, the
+ * {@link InputClock} time of an input, and the fields of the type. Replaying sets the clock back to
+ * each input's time, so fairness policies that read it decide as they did. The length is written
+ * last and a zero length ends the region, so a record torn by a crash is never replayed. Writes are
+ * not forced to disk: the journal survives the fork server process crashing, not the machine.
+ * <p>
+ * Journaling is on when {@code dining.journal.dir} names a directory. {@code dining.journal.size} is the
+ * file size in MiB, 16 by default. Not thread safe, callers serialize access like for the protocol.
+ */
+final class ForkJournal {
+    /**
+     * Receives the journal contents on replay, in order.
+     */
+    interface Replay {
+        void restore(int fork, AcquisitionProtocol protocol, ByteBuffer state);
+
+        void register(int fork, String name, AcquisitionProtocol protocol, boolean holds);
+
+        void reconnect(int fork, String name, boolean holds) throws IOException;
+
+        void revoke(int fork, String name) throws IOException;
+
+        void handle(int fork, String name, Message message) throws IOException;
+    }
+
+    /**
+     * Writes a snapshot of every fork the journal covers, calling {@link #snapshot} once per fork.
+     */
+    interface State {
+        void snapshot(ForkJournal journal);
+    }
+
+    private static final int MAGIC = 0xF0CC_1A11;
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 64;
+    private static final int RUN_ID = 8;
+    private static final int ACTIVE = 16;
+    // Length and CRC
+    private static final int RECORD_HEADER = 8;
+
+    private static final byte SNAPSHOT = 1;
+    private static final byte REGISTER = 2;
+    private static final byte RECONNECT = 3;
+    private static final byte EVENT = 4;
+    private static final byte REVOKE = 5;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final ByteBuffer[] regions = new ByteBuffer[2];
+    private final int snapshotInterval;
+    private final CRC32 crc = new CRC32();
+    private final InputClock clock;
+    private State state;
+
+    private int active;
+    // Where the next record goes in the active region
+    private int position;
+    private int sinceSnapshot;
+    private boolean snapshotting;
+
+    private ForkJournal(Path path, int size, int snapshotInterval, InputClock clock) throws IOException {
+        this.path = path;
+        this.clock = clock;
+        this.snapshotInterval = snapshotInterval;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // An existing journal keeps its size, the region bounds depend on it
+        long existing = channel.size();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, existing > HEADER_SIZE ? existing : size);
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            map.putInt(0, MAGIC).putInt(4, VERSION);
+            reset(0);
+        }
+        int regionSize = (map.capacity() - HEADER_SIZE) / 2;
+        for (int region = 0; region < 2; region++) {
+            map.position(HEADER_SIZE + region * regionSize).limit(HEADER_SIZE + (region + 1) * regionSize);
+            regions[region] = map.slice();
+            map.clear();
+        }
+        active = map.getInt(ACTIVE);
+    }
+
+    /**
+     * @param fileName journal file in {@code dining.journal.dir}
+     * @param clock the clock of the inputs journaled
+     * @return the journal, or null if journaling is off
+     */
+    static ForkJournal open(String fileName, InputClock clock) throws IOException {
+        String directory = System.getProperty("dining.journal.dir");
+        if (directory == null || directory.isEmpty()) return null;
+        Files.createDirectories(Paths.get(directory));
+        int megabytes = Integer.getInteger("dining.journal.size", 16);
+        int snapshotInterval = Integer.getInteger("dining.journal.snapshot", 65536);
+        return new ForkJournal(Paths.get(directory, fileName), megabytes << 20, snapshotInterval, clock);
+    }
+
+    /**
+     * Set who writes snapshots. Until then, a full region is an error.
+     */
+    void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * @return the run of the main server this journal belongs to, 0 if none
+     */
+    long runId() {
+        return map.getLong(RUN_ID);
+    }
+
+    /**
+     * @return randomness for the fairness policy of a fork, seeded by the run and the fork so a replay
+     * draws what the crashed process drew
+     */
+    SplittableRandom random(int fork) {
+        return new SplittableRandom(runId() * 31 + fork);
+    }
+
+    /**
+     * Drop everything, for a fork server registering at a new run.
+     */
+    void reset(long runId) {
+        map.putLong(RUN_ID, runId);
+        map.putInt(ACTIVE, 0);
+        map.putInt(HEADER_SIZE, 0);
+        active = 0;
+        position = 0;
+        sinceSnapshot = 0;
+    }
+
+    /**
+     * Feed the active region to the replay, and append after it.
+     */
+    void replay(Replay replay) throws IOException {
+        ByteBuffer region = regions[active];
+        position = 0;
+        while (position + RECORD_HEADER <= region.capacity()) {
+            int length = region.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > region.capacity()) break;
+            ByteBuffer body = region.duplicate();
+            body.position(position + RECORD_HEADER).limit(position + RECORD_HEADER + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != region.getInt(position + 4)) {
+                Log.warn("Journal %s ends with a torn record at %d", path, position);
+                break;
+            }
+            replay(body, clock, replay);
+            position += RECORD_HEADER + length;
+            sinceSnapshot++;
+        }
+    }
+
+    private static void replay(ByteBuffer body, InputClock clock, Replay replay) throws IOException {
+        byte type = body.get();
+        int fork = body.getInt();
+        if (type != SNAPSHOT) clock.set(body.getLong());
+        switch (type) {
+            case SNAPSHOT:
+                replay.restore(fork, AcquisitionProtocol.fromCode(body.get()), body.slice());
+                break;
+            case REGISTER:
+                replay.register(fork, BinaryMessageCodec.getString(body), AcquisitionProtocol.fromCode(body.get()),
+                        BinaryMessageCodec.getBoolean(body));
+                break;
+            case RECONNECT:
+                replay.reconnect(fork, BinaryMessageCodec.getString(body), BinaryMessageCodec.getBoolean(body));
+                break;
+            case REVOKE:
+                replay.revoke(fork, BinaryMessageCodec.getString(body));
+                break;
+            case EVENT: {
+                String name = BinaryMessageCodec.getString(body);
+                Message.Kind kind = Message.Kind.fromCode(body.get());
+                int meals = body.getInt();
+                replay.handle(fork, name, kind == Message.Kind.RELEASE_FORK ? new Message(meals, kind) : new Message(kind));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    void register(int fork, String name, AcquisitionProtocol protocol, boolean holds) {
+        ByteBuffer out = begin(REGISTER, fork, name);
+        BinaryMessageCodec.putString(out, name);
+        out.put(protocol.getCode());
+        BinaryMessageCodec.putBoolean(out, holds);
+        end(out);
+    }
+
+    void reconnect(int fork, String name, boolean holds) {
+        ByteBuffer out = begin(RECONNECT, fork, name);
+        BinaryMessageCodec.putString(out, name);
+        BinaryMessageCodec.putBoolean(out, holds);
+        end(out);
+    }
+
+    /**
+     * Journal an expired lease.
+     */
+    void revoke(int fork, String name) {
+        ByteBuffer out = begin(REVOKE, fork, name);
+        BinaryMessageCodec.putString(out, name);
+        end(out);
+    }
+
+    /**
+     * Journal a philosopher message before the protocol handles it.
+     */
+    void handle(int fork, String name, Message message) {
+        ByteBuffer out = begin(EVENT, fork, name);
+        BinaryMessageCodec.putString(out, name);
+        out.put(message.getKind().getCode());
+        out.putInt(message.getKind() == Message.Kind.RELEASE_FORK ? (int) message.getMessage() : 0);
+        end(out);
+    }
+
+    /**
+     * Write the state of one fork, only while {@link State#snapshot} runs.
+     */
+    void snapshot(int fork, AcquisitionProtocol protocol, Consumer<ByteBuffer> writer) {
+        if (!snapshotting) throw new IllegalStateException("Not taking a snapshot");
+        ByteBuffer out = regions[active];
+        out.position(position + RECORD_HEADER);
+        try {
+            out.put(SNAPSHOT).putInt(fork).put(protocol.getCode());
+            writer.accept(out);
+        } catch (BufferOverflowException e) {
+            throw new IllegalStateException("Journal " + path + " is too small for a snapshot, raise dining.journal.size", e);
+        }
+        end(out);
+    }
+
+    /**
+     * Snapshot every fork into the other region and make it the active one.
+     */
+    void takeSnapshot() {
+        if (state == null) throw new IllegalStateException("Journal " + path + " is full");
+        int previous = active;
+        active = 1 - previous;
+        position = 0;
+        regions[active].putInt(0, 0);
+        snapshotting = true;
+        try {
+            state.snapshot(this);
+        } finally {
+            snapshotting = false;
+        }
+        // The switch is a single aligned write, a crash before it leaves the old region active
+        map.putInt(ACTIVE, active);
+        sinceSnapshot = 0;
+    }
+
+    /**
+     * Remove the journal of a fork server that stopped cleanly.
+     */
+    void delete() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private ByteBuffer begin(byte type, int fork, String name) {
+        // Type, fork, time, name, kind or protocol code, flag or meal count and the terminator after the record
+        int size = RECORD_HEADER + 1 + 4 + 8 + 2 + 3 * name.length() + 5 + 4;
+        if (++sinceSnapshot > snapshotInterval || position + size > regions[active].capacity()) takeSnapshot();
+        ByteBuffer out = regions[active];
+        out.position(position + RECORD_HEADER);
+        out.put(type).putInt(fork).putLong(clock.getAsLong());
+        return out;
+    }
+
+    private void end(ByteBuffer out) {
+        int next = out.position();
+        int length = next - position - RECORD_HEADER;
+        if (next + 4 <= out.capacity()) out.putInt(next, 0);
+        ByteBuffer body = out.duplicate();
+        body.position(position + RECORD_HEADER).limit(next);
+        crc.reset();
+        crc.update(body);
+        out.putInt(position + 4, (int) crc.getValue());
+        out.putInt(position, length);
+        position = next;
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * Fork side of an {@link AcquisitionProtocol}: reacts to philosopher messages and tells the caller
+ * what to send to whom. Implementations are not thread safe, callers must serialize access.
+ *
+ * @param <C> how the caller identifies a philosopher, usually its connection
+ */
+interface ForkProtocol<C> {
+    Message FORK_ACQUIRED = new Message(Message.Kind.FORK_ACQUIRED);
+    Message FORK_IN_USE = new Message(Message.Kind.FORK_IN_USE);
+    Message FORK_REQUESTED = new Message(Message.Kind.FORK_REQUESTED);
+    Message FORK_REVOKED = new Message(Message.Kind.FORK_REVOKED);
+
+    interface Replies<C> {
+        void send(C philosopher, Message message) throws IOException;
+    }
+
+    /**
+     * @param holdsInitially whether the philosopher starts out holding the fork
+     */
+    void register(C philosopher, boolean holdsInitially);
+
+    void handle(C philosopher, Message message, Replies<C> replies) throws IOException;
+
+    /**
+     * A registered philosopher connected again, because it or the fork server restarted. What the
+     * philosopher thinks it holds wins, so a grant or a release lost with the old connection is
+     * undone; a philosopher that still wants the fork asks again. Only a fork that went to somebody
+     * else meanwhile, because the lease of the philosopher expired, is revoked instead.
+     * @param holds whether the philosopher thinks it holds the fork
+     */
+    void reconnect(C philosopher, boolean holds, Replies<C> replies) throws IOException;
+
+    /**
+     * Take the fork away from its holder, whose lease expired, and hand it to the next waiter. The
+     * holder is told with FORK_REVOKED and a RELEASE_FORK it sends later is ignored.
+     */
+    default void revoke(C philosopher, Replies<C> replies) throws IOException {
+        replies.send(philosopher, FORK_REVOKED);
+        reconnect(philosopher, false, replies);
+    }
+
+    /**
+     * @return who holds the fork, or null if it is free
+     */
+    C holder();
+
+    /**
+     * Write the whole state, for a {@link ForkJournal} snapshot.
+     * @param names the name of every registered philosopher, which survives restarts
+     */
+    void snapshot(ByteBuffer out, Function<C, String> names);
+
+    /**
+     * Load a snapshot into a fresh instance.
+     * @param philosophers the philosopher of each name
+     */
+    void restore(ByteBuffer in, Function<String, C> philosophers);
+
+    /**
+     * @return how many times the philosopher ate with this fork, or null if it is not registered yet
+     */
+    Integer eatTimes(C philosopher);
+
+    /**
+     * @return how many philosophers are waiting for this fork
+     */
+    int waiting();
+
+    static <C> ForkProtocol<C> create(AcquisitionProtocol protocol, FairnessPolicy policy) {
+        switch (protocol) {
+            case HYGIENIC:
+                return new HygienicFork<>();
+            default:
+                return new ForkArbiter<>(policy);
+        }
+    }
+}
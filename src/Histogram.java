@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram in the style of HdrHistogram. Values below {@code 2 * SUB_BUCKETS}
+ * are counted exactly, larger ones in buckets no wider than 1/{@value #SUB_BUCKETS} of their value,
+ * so percentiles are within 1%. Recording is an atomic increment plus, rarely, a CAS on the max.
+ * <p>
+ * Readers see a slightly moving target while recorders are active, which is fine for monitoring.
+ */
+public class Histogram implements HistogramMXBean {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Larger values are clamped, about 12 days in microseconds
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value, negative values count as 0.
+     */
+    void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+    }
+
+    @Override
+    public long getCount() {
+        return total.get();
+    }
+
+    @Override
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    @Override
+    public long getP50() {
+        return percentile(0.5);
+    }
+
+    @Override
+    public long getP99() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long getP999() {
+        return percentile(0.999);
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the lowest value of the bucket holding the quantile, 0 when empty
+     */
+    long percentile(double quantile) {
+        long count = total.get();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return valueOf(i);
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p99=%d p999=%d max=%d",
+                getCount(), getMean(), getP50(), getP99(), getP999(), getMax());
+    }
+
+    private static int index(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long valueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index - shift * SUB_BUCKETS) << shift;
+    }
+}
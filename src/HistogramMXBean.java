@@ -0,0 +1,16 @@
+/**
+ * JMX view of a {@link Histogram}, in the unit the histogram records.
+ */
+public interface HistogramMXBean {
+    long getCount();
+
+    double getMean();
+
+    long getP50();
+
+    long getP99();
+
+    long getP999();
+
+    long getMax();
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.Function;
+
+/**
+ * Fork side of the {@link AcquisitionProtocol#HYGIENIC} protocol. The fork only tracks who holds it
+ * and forwards requests to the holder as FORK_REQUESTED. Whether to hand over (dirty fork, not
+ * eating) is the holder's decision, see {@link HygienicForks}.
+ *
+ * @param <C> how the caller identifies a philosopher, usually its connection
+ */
+class HygienicFork<C> implements ForkProtocol<C> {
+    private final Map<C, int[]> eatTimes = new HashMap<>(4);
+    private final Queue<C> requesters = new ArrayDeque<>();
+    private C holder;
+
+    @Override
+    public void register(C philosopher, boolean holdsInitially) {
+        eatTimes.put(philosopher, new int[1]);
+        if (holdsInitially) holder = philosopher;
+    }
+
+    @Override
+    public void handle(C philosopher, Message message, Replies<C> replies) throws IOException {
+        switch (message.getKind()) {
+            case REQUEST_FORK:
+                if (holder == null) {
+                    holder = philosopher;
+                    replies.send(philosopher, FORK_ACQUIRED);
+                } else if (holder != philosopher && !requesters.contains(philosopher)) {
+                    requesters.add(philosopher);
+                    replies.send(holder, FORK_REQUESTED);
+                }
+                break;
+            case RELEASE_FORK:
+                if (philosopher != holder) break;
+                eatTimes.get(philosopher)[0] += (int) message.getMessage();
+                // Whoever asked first gets the fork, clean
+                holder = requesters.poll();
+                if (holder != null) {
+                    replies.send(holder, FORK_ACQUIRED);
+                    if (!requesters.isEmpty()) replies.send(holder, FORK_REQUESTED);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void reconnect(C philosopher, boolean holds, Replies<C> replies) throws IOException {
+        if (holder == philosopher && !holds) {
+            // Either the hand over or the grant got lost, a philosopher still hungry asks again
+            holder = requesters.poll();
+            if (holder != null) {
+                replies.send(holder, FORK_ACQUIRED);
+                if (!requesters.isEmpty()) replies.send(holder, FORK_REQUESTED);
+            }
+        } else if (holder == philosopher) {
+            if (!requesters.isEmpty()) replies.send(holder, FORK_REQUESTED);
+        } else if (holds) {
+            if (holder != null) {
+                // Its lease expired while it was away
+                replies.send(philosopher, FORK_REVOKED);
+                return;
+            }
+            requesters.remove(philosopher);
+            holder = philosopher;
+            if (!requesters.isEmpty()) replies.send(holder, FORK_REQUESTED);
+        }
+    }
+
+    @Override
+    public void snapshot(ByteBuffer out, Function<C, String> names) {
+        List<C> contenders = new ArrayList<>(eatTimes.keySet());
+        out.putInt(contenders.size());
+        for (C philosopher : contenders) {
+            BinaryMessageCodec.putString(out, names.apply(philosopher));
+            out.putInt(eatTimes.get(philosopher)[0]);
+        }
+        out.putInt(holder == null ? -1 : contenders.indexOf(holder));
+        out.putInt(requesters.size());
+        for (C philosopher : requesters) out.putInt(contenders.indexOf(philosopher));
+    }
+
+    @Override
+    public void restore(ByteBuffer in, Function<String, C> philosophers) {
+        List<C> contenders = new ArrayList<>();
+        for (int count = in.getInt(); count > 0; count--) {
+            C philosopher = philosophers.apply(BinaryMessageCodec.getString(in));
+            eatTimes.put(philosopher, new int[] {in.getInt()});
+            contenders.add(philosopher);
+        }
+        int holderIndex = in.getInt();
+        holder = holderIndex < 0 ? null : contenders.get(holderIndex);
+        for (int count = in.getInt(); count > 0; count--) requesters.add(contenders.get(in.getInt()));
+    }
+
+    @Override
+    public C holder() {
+        return holder;
+    }
+
+    @Override
+    public Integer eatTimes(C philosopher) {
+        int[] times = eatTimes.get(philosopher);
+        return times == null ? null : times[0];
+    }
+
+    @Override
+    public int waiting() {
+        return requesters.size();
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Philosopher side of the {@link AcquisitionProtocol#HYGIENIC} (Chandy-Misra) protocol.
+ * <p>
+ * Forks start dirty, held by whichever of their two philosophers comes first in the initial
+ * orientation set by the main server, which keeps the precedence graph acyclic. A received fork is
+ * clean and becomes dirty once eaten with. When its fork is requested, a philosopher hands it over
+ * if it is dirty and the philosopher is not eating, asking for it back right away if hungry;
+ * otherwise the request is remembered and served after the next meal. Hungry philosophers never
+ * give up clean forks, so nobody waits forever and no timeouts are needed.
+ */
+class HygienicForks {
+    interface Sender {
+        void send(int fork, Message message);
+    }
+
+    interface Hello {
+        /**
+         * Announce a new connection to the fork server.
+         * @param holds whether the philosopher holds the fork
+         */
+        void send(boolean holds) throws IOException;
+    }
+
+    private static final Message REQUEST_FORK = new Message(Message.Kind.REQUEST_FORK);
+
+    private final Sender sender;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition forkArrived = lock.newCondition();
+
+    private final boolean[] held;
+    private final boolean[] dirty;
+    private final boolean[] requested;
+    // Meals the philosopher had with the fork since receiving it, reported when handing it over
+    private final int[] ateWith;
+    private boolean hungry;
+    private boolean eating;
+    private boolean stopping;
+
+    /**
+     * @param initiallyHeld which forks the philosopher starts with, all of them dirty
+     * @param sender sends a message to the server of the given fork
+     */
+    HygienicForks(boolean[] initiallyHeld, Sender sender) {
+        this.sender = sender;
+        held = initiallyHeld.clone();
+        dirty = initiallyHeld.clone();
+        requested = new boolean[held.length];
+        ateWith = new int[held.length];
+    }
+
+    /**
+     * Become hungry and block until every fork is held, or until {@link #stop()}.
+     * @return whether the philosopher eats now; after a stop it isn't hungry anymore
+     */
+    boolean acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            becomeHungry();
+            while (!holdsAll() && !stopping) forkArrived.await();
+            if (!holdsAll()) {
+                // Hand over what is requested from now on without asking back
+                hungry = false;
+                return false;
+            }
+            eating = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The philosopher stops dining: wake it up if it waits for forks, and don't let it wait again.
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopping = true;
+            forkArrived.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Become hungry without blocking: ask for the missing forks. Event driven callers then call
+     * {@link #eatIfReady()} whenever a fork arrives.
+     */
+    void becomeHungry() {
+        lock.lock();
+        try {
+            hungry = true;
+            for (int fork = 0; fork < held.length; fork++) {
+                if (!held[fork]) sender.send(fork, REQUEST_FORK);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start eating if hungry and every fork is held.
+     * @return whether the philosopher eats now
+     */
+    boolean eatIfReady() {
+        lock.lock();
+        try {
+            if (!hungry || eating || !holdsAll()) return false;
+            eating = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Done eating: every fork gets dirty, and the ones requested meanwhile are handed over.
+     */
+    void release() {
+        lock.lock();
+        try {
+            eating = false;
+            hungry = false;
+            for (int fork = 0; fork < held.length; fork++) {
+                // Revoked while eating
+                if (!held[fork]) continue;
+                dirty[fork] = true;
+                ateWith[fork]++;
+                if (requested[fork]) handOver(fork);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Done dining: hand over the forks eaten with since they arrived, so their fork servers count
+     * those meals too.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            hungry = false;
+            for (int fork = 0; fork < held.length; fork++) {
+                if (held[fork] && ateWith[fork] > 0) handOver(fork);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A neighbour asked for the fork (FORK_REQUESTED).
+     */
+    void onRequested(int fork) {
+        lock.lock();
+        try {
+            if (!held[fork]) return;
+            if (dirty[fork] && !eating) {
+                handOver(fork);
+                if (hungry) sender.send(fork, REQUEST_FORK);
+            } else {
+                requested[fork] = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The fork arrived (FORK_ACQUIRED), always clean.
+     */
+    void onAcquired(int fork) {
+        lock.lock();
+        try {
+            held[fork] = true;
+            dirty[fork] = false;
+            forkArrived.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The connection to the server of the fork was replaced after a restart. Nothing else goes out
+     * until the hello did, and a hungry philosopher asks again for a fork it doesn't hold.
+     */
+    void onReconnected(int fork, Hello hello) throws IOException {
+        lock.lock();
+        try {
+            hello.send(held[fork]);
+            if (hungry && !held[fork]) sender.send(fork, REQUEST_FORK);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The lease of the fork expired (FORK_REVOKED) and the fork server gave it away. A hungry
+     * philosopher asks for it again.
+     */
+    void onRevoked(int fork) {
+        lock.lock();
+        try {
+            if (eating) Log.warn("Fork %d revoked while eating", fork);
+            held[fork] = false;
+            requested[fork] = false;
+            ateWith[fork] = 0;
+            if (hungry && !eating) sender.send(fork, REQUEST_FORK);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void handOver(int fork) {
+        sender.send(fork, new Message(ateWith[fork], Message.Kind.RELEASE_FORK));
+        held[fork] = false;
+        requested[fork] = false;
+        ateWith[fork] = 0;
+    }
+
+    private boolean holdsAll() {
+        for (boolean h : held) {
+            if (!h) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Time of the input a fork server is handling, in wall clock nanoseconds. Fairness policies read it
+ * instead of the system clock, and the {@link ForkJournal} stamps it on every input and sets it back
+ * on replay, so a restarted fork server makes the decisions its crashed process made. Only touched by
+ * the thread that owns the forks.
+ */
+final class InputClock implements LongSupplier {
+    // Wall clock at startup plus monotonic time since, comparable across processes and never going back within one
+    private static final long ORIGIN = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    private long now = ORIGIN + System.nanoTime();
+
+    /**
+     * Move to the time of a new input.
+     */
+    void tick() {
+        now = Math.max(now, ORIGIN + System.nanoTime());
+    }
+
+    /**
+     * Move to the time of a replayed input.
+     */
+    void set(long time) {
+        now = time;
+    }
+
+    @Override
+    public long getAsLong() {
+        return now;
+    }
+}
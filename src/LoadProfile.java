@@ -0,0 +1,99 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How philosophers load the table, chosen on the main server and pushed to every philosopher in
+ * START:
+ * <ul>
+ *     <li>{@code dining.think} and {@code dining.eat}: {@link DurationDistribution} specs, by default
+ *     {@code uniform:5000}</li>
+ *     <li>{@code dining.seed}: base seed, each philosopher adds its seat; random by default</li>
+ *     <li>{@code dining.meals}: meals per philosopher, {@code 0} (default) for no bound</li>
+ *     <li>{@code dining.duration}: run duration in seconds, {@code 0} (default) for no bound</li>
+ *     <li>{@code dining.session}: how many of its forks a philosopher needs per meal, picked at random
+ *     each time; {@code 0} (default) means all of them. Only the waiter protocol honours it</li>
+ * </ul>
+ * A bounded run ends with every philosopher reporting FINISHED and the main server printing a report.
+ */
+class LoadProfile {
+    private final String think;
+    private final String eat;
+    private final long seed;
+    private final int meals;
+    private final long durationMillis;
+    private final int sessionForks;
+
+    LoadProfile(String think, String eat, long seed, int meals, long durationMillis, int sessionForks) {
+        // Fail on the main server rather than on every philosopher
+        DurationDistribution.parse(think);
+        DurationDistribution.parse(eat);
+        this.think = think;
+        this.eat = eat;
+        this.seed = seed;
+        this.meals = meals;
+        this.durationMillis = durationMillis;
+        this.sessionForks = sessionForks;
+    }
+
+    static LoadProfile fromSystemProperties() {
+        return new LoadProfile(
+                System.getProperty("dining.think", "uniform:5000"),
+                System.getProperty("dining.eat", "uniform:5000"),
+                Long.getLong("dining.seed", System.nanoTime()),
+                Integer.getInteger("dining.meals", 0),
+                TimeUnit.SECONDS.toMillis(Long.getLong("dining.duration", 0)),
+                Integer.getInteger("dining.session", 0));
+    }
+
+    /**
+     * @return the START payload
+     */
+    Object[] toPayload() {
+        return new Object[] {think, eat, seed, meals, durationMillis, sessionForks};
+    }
+
+    static LoadProfile fromPayload(Object[] payload) {
+        return new LoadProfile((String) payload[0], (String) payload[1], (long) payload[2], (int) payload[3], (long) payload[4], (int) payload[5]);
+    }
+
+    DurationDistribution think() {
+        return DurationDistribution.parse(think);
+    }
+
+    DurationDistribution eat() {
+        return DurationDistribution.parse(eat);
+    }
+
+    SplittableRandom random(int seat) {
+        return new SplittableRandom(seed + seat);
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    int getMeals() {
+        return meals;
+    }
+
+    long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return how many forks a philosopher needs per meal, 0 for all of them
+     */
+    int getSessionForks() {
+        return sessionForks;
+    }
+
+    boolean isBounded() {
+        return meals > 0 || durationMillis > 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("think %s, eat %s, seed %d, meals %d, duration %d ms, session forks %d",
+                think, eat, seed, meals, durationMillis, sessionForks);
+    }
+}
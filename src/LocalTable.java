@@ -0,0 +1,50 @@
+import java.util.function.IntPredicate;
+
+/**
+ * Runs a whole table inside one JVM over the {@link LoopbackTransport}: a main server, one fork per
+ * fork of the {@link TableTopology} and one philosopher per seat, each on its own thread. Useful to
+ * profile the protocol and the fairness policies without sockets, and to run large rings on a single
+ * box (combine with {@code -Ddining.threads=virtual}).
+ * <p>
+ * With {@code dining.transport=mux} the nodes talk over real sockets instead, one {@link MuxTransport}
+ * session per listening node, on ports from {@code dining.local.port} (9500 by default) up.
+ */
+public class LocalTable {
+    private static final int MAIN_SERVER_PORT = 1;
+    // Leaves the port after the main server free for the waiter
+    private static final int FIRST_FORK_PORT = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        int numberOfPhilosophers = Integer.parseInt(args[0]);
+        // Only the number of forks matters here, and it doesn't depend on the seed
+        TableTopology topology = TableTopology.fromSystemProperties(numberOfPhilosophers, 0);
+        topology.check(AcquisitionProtocol.fromSystemProperties());
+        boolean mux = "mux".equals(System.getProperty("dining.transport"));
+        Transport transport = mux ? Transport.fromSystemProperties() : LoopbackTransport.SHARED;
+        IntPredicate listening = mux ? MuxTransport.SHARED::isListening : LoopbackTransport.SHARED::isListening;
+        int basePort = mux ? Integer.getInteger("dining.local.port", 9500) : 0;
+        int mainServerPort = basePort + MAIN_SERVER_PORT;
+        ExecutionMode executionMode = ExecutionMode.fromSystemProperties();
+
+        Thread mainServer = executionMode.start("Main Server", () -> new MainServer(mainServerPort, numberOfPhilosophers, transport));
+        awaitListening(listening, mainServerPort);
+
+        for (int i = 0; i < topology.forks(); i++) {
+            int port = basePort + FIRST_FORK_PORT + i;
+            executionMode.start("Fork " + i, () -> new Fork("localhost", mainServerPort, port, transport));
+            awaitListening(listening, port);
+        }
+
+        for (int i = 0; i < numberOfPhilosophers; i++) {
+            String name = "P" + i;
+            executionMode.start(name, () -> new Philosopher(name, "localhost", mainServerPort, transport));
+        }
+
+        // Virtual threads don't keep the JVM alive, and the main server only returns once the table stopped
+        mainServer.join();
+    }
+
+    private static void awaitListening(IntPredicate listening, int port) throws InterruptedException {
+        while (!listening.test(port)) Thread.sleep(1);
+    }
+}
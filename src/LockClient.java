@@ -0,0 +1,450 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Forks as distributed locks: every fork of a {@link Fork} or a {@link ForkHost} running the
+ * {@link AcquisitionProtocol#TIMEOUT} protocol is a lock named by its {@link ForkEndpoint}, and the
+ * client competes for it like one more philosopher, under the fork's fairness policy. Acquisitions
+ * never block, they complete a future with a {@link Lease} once the fork is granted.
+ * <p>
+ * All acquisitions of a fork share one connection and one place in the fork's queue: a single
+ * REQUEST_FORK is out at a time, later acquisitions wait in the client in arrival order, and a release
+ * with acquisitions waiting asks again right away. A grant that nobody waits for anymore, because its
+ * acquisition timed out or was cancelled, is handed back at once and still counts as the client's
+ * turn. In between, the client leaves the fork, so the table doesn't wait for its turn.
+ * <p>
+ * The name must be unique among the fork's contenders. Leases are kept by heartbeats; a lost connection
+ * fails the acquisitions of its fork and revokes its lease, the next acquisition connects again.
+ */
+public class LockClient implements Closeable {
+    private static final Message REQUEST_FORK = new Message(null, Message.Kind.REQUEST_FORK);
+    private static final Message RELEASE_FORK = new Message(1, Message.Kind.RELEASE_FORK);
+    private static final Message LEAVE_FORK = new Message(null, Message.Kind.LEAVE_FORK);
+    private static final Message HEARTBEAT = new Message(null, Message.Kind.HEARTBEAT);
+    private static final int IO_THREADS = 4;
+    // Order of acquireAll, the same for every client so that no two of them deadlock
+    private static final Comparator<ForkEndpoint> ORDER = Comparator.comparing(ForkEndpoint::getHostname)
+            .thenComparingInt(ForkEndpoint::getPort).thenComparingInt(ForkEndpoint::getId);
+
+    private final String name;
+    private final Transport transport;
+    private final ExecutionMode executionMode = ExecutionMode.fromSystemProperties();
+    private final Executor connectors;
+    private final Executor writers;
+    private final Map<ForkEndpoint, CompletableFuture<RemoteFork>> forks = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param leaseMillis the lease length of the table, heartbeats go out three times per lease; 0 for
+     *                    a table without leases
+     */
+    public LockClient(String name, Transport transport, long leaseMillis) {
+        this.name = name;
+        this.transport = transport;
+        connectors = executionMode.newExecutor("Lock Client Connector", IO_THREADS);
+        writers = executionMode.newExecutor("Lock Client Writer", IO_THREADS);
+        if (leaseMillis > 0) executionMode.start("Lock Client Heartbeat Thread", () -> sendHeartbeats(leaseMillis / 3));
+    }
+
+    /**
+     * @return a lease on the fork once it is granted; fails if the fork server can't be reached
+     */
+    public CompletableFuture<Lease> acquire(ForkEndpoint resource) {
+        if (closed) return failed(new IOException("Lock client closed"));
+        CompletableFuture<Lease> acquired = new CompletableFuture<>();
+        fork(resource).whenComplete((fork, failure) -> {
+            if (failure != null) {
+                acquired.completeExceptionally(failure);
+                return;
+            }
+            CompletableFuture<Lease> queued = fork.acquire();
+            // A caller that gave up, by timeout or cancel, gives up the queued acquisition: its grant goes back
+            acquired.whenComplete((lease, gaveUp) -> {
+                if (gaveUp != null) queued.cancel(false);
+            });
+            queued.whenComplete((lease, lost) -> {
+                if (lost != null) acquired.completeExceptionally(lost);
+                else if (!acquired.complete(lease)) lease.release();
+            });
+        });
+        return acquired;
+    }
+
+    /**
+     * Like {@link #acquire(ForkEndpoint)}, but fails with a {@link TimeoutException} if the fork isn't
+     * granted in time.
+     */
+    public CompletableFuture<Lease> tryAcquire(ForkEndpoint resource, long timeout, TimeUnit unit) {
+        return acquire(resource).orTimeout(timeout, unit);
+    }
+
+    /**
+     * Acquire several forks, one after the other in the same global order as every other client. If
+     * one fails, or the returned future is cancelled or times out, the forks held so far are released.
+     * @return a single lease on all of them
+     */
+    public CompletableFuture<Lease> acquireAll(Set<ForkEndpoint> resources) {
+        List<ForkEndpoint> ordered = new ArrayList<>(resources);
+        ordered.sort(ORDER);
+        CompletableFuture<Lease> all = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<Lease>> current = new AtomicReference<>();
+        // Stop waiting for the next fork when the caller gave up
+        all.whenComplete((lease, failure) -> {
+            CompletableFuture<Lease> acquisition = current.get();
+            if (failure != null && acquisition != null) acquisition.cancel(false);
+        });
+        acquireNext(ordered, new ArrayList<>(), current, all);
+        return all;
+    }
+
+    public CompletableFuture<Lease> tryAcquireAll(Set<ForkEndpoint> resources, long timeout, TimeUnit unit) {
+        return acquireAll(resources).orTimeout(timeout, unit);
+    }
+
+    private void acquireNext(List<ForkEndpoint> ordered, List<Lease> held,
+                             AtomicReference<CompletableFuture<Lease>> current, CompletableFuture<Lease> all) {
+        if (all.isDone()) {
+            held.forEach(Lease::release);
+            return;
+        }
+        if (held.size() == ordered.size()) {
+            Lease lease = new Lease(held);
+            if (!all.complete(lease)) lease.release();
+            return;
+        }
+        CompletableFuture<Lease> acquisition = acquire(ordered.get(held.size()));
+        current.set(acquisition);
+        acquisition.whenComplete((lease, failure) -> {
+            if (failure != null) {
+                held.forEach(Lease::release);
+                all.completeExceptionally(failure);
+                return;
+            }
+            held.add(lease);
+            acquireNext(ordered, held, current, all);
+        });
+    }
+
+    /**
+     * The connection to a fork, opened on first use.
+     */
+    private CompletableFuture<RemoteFork> fork(ForkEndpoint endpoint) {
+        CompletableFuture<RemoteFork> fork =
+                forks.computeIfAbsent(endpoint, e -> CompletableFuture.supplyAsync(() -> connect(e), connectors));
+        // A fork server that can't be reached is tried again by the next acquisition
+        fork.exceptionally(failure -> {
+            forks.remove(endpoint, fork);
+            return null;
+        });
+        return fork;
+    }
+
+    private RemoteFork connect(ForkEndpoint endpoint) {
+        try {
+            Connection connection = transport.connect(endpoint.getHostname(), endpoint.getPort());
+            RemoteFork fork = new RemoteFork(endpoint, connection);
+            fork.outbox.post(new Message(new Object[] {name, endpoint.getId(), AcquisitionProtocol.TIMEOUT, false},
+                    Message.Kind.CONNECT_FORK));
+            executionMode.start("Lock Client Reader Thread " + endpoint, fork::listen);
+            return fork;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void sendHeartbeats(long periodMillis) {
+        try {
+            while (!closed) {
+                Thread.sleep(periodMillis);
+                for (CompletableFuture<RemoteFork> fork : forks.values()) {
+                    if (fork.isDone() && !fork.isCompletedExceptionally()) fork.join().outbox.post(HEARTBEAT);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Release every lease, leave every fork and disconnect. Pending acquisitions fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (CompletableFuture<RemoteFork> fork : forks.values()) {
+            fork.thenAccept(RemoteFork::close);
+        }
+        forks.clear();
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable failure) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * One fork as seen by this client.
+     */
+    private final class RemoteFork {
+        private final ForkEndpoint endpoint;
+        private final Connection connection;
+        private final Outbox outbox;
+        private final ReentrantLock lock = new ReentrantLock();
+        // Acquisitions waiting for the fork, in arrival order. Some may be done already, they are skipped
+        private final Queue<CompletableFuture<Lease>> waiting = new ArrayDeque<>();
+        // A REQUEST_FORK is out
+        private boolean requested;
+        private Lease holder;
+        private boolean lost;
+
+        RemoteFork(ForkEndpoint endpoint, Connection connection) {
+            this.endpoint = endpoint;
+            this.connection = connection;
+            outbox = new Outbox(connection, writers);
+        }
+
+        CompletableFuture<Lease> acquire() {
+            CompletableFuture<Lease> acquisition = new CompletableFuture<>();
+            lock.lock();
+            try {
+                if (lost) return failed(new IOException("Lost connection to " + endpoint));
+                waiting.add(acquisition);
+                if (!requested && holder == null) request();
+            } finally {
+                lock.unlock();
+            }
+            return acquisition;
+        }
+
+        private void request() {
+            requested = true;
+            outbox.post(REQUEST_FORK);
+        }
+
+        void listen() {
+            try {
+                Message message;
+                while ((message = connection.in().read()) != null) {
+                    switch (message.getKind()) {
+                        case FORK_ACQUIRED:
+                            onAcquired();
+                            break;
+                        case FORK_REVOKED:
+                            onRevoked();
+                            break;
+                        default:
+                            // FORK_IN_USE: the request is queued at the fork, the grant comes later
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) Log.warn("Lost connection to %s: %s", endpoint, e.getMessage());
+            } finally {
+                onLost();
+            }
+        }
+
+        private void onAcquired() {
+            CompletableFuture<Lease> granted;
+            Lease lease;
+            lock.lock();
+            try {
+                requested = false;
+                // A duplicate grant of the fork the client holds already
+                if (holder != null) return;
+                do granted = waiting.poll(); while (granted != null && granted.isDone());
+                if (granted == null) {
+                    // Nobody waits anymore, give the fork back
+                    outbox.post(RELEASE_FORK);
+                    outbox.post(LEAVE_FORK);
+                    return;
+                }
+                holder = lease = new Lease(this);
+            } finally {
+                lock.unlock();
+            }
+            // Cancelled just now
+            if (!granted.complete(lease)) lease.release();
+        }
+
+        void release(Lease lease) {
+            lock.lock();
+            try {
+                // Revoked meanwhile
+                if (holder != lease) return;
+                holder = null;
+                outbox.post(RELEASE_FORK);
+                askAgainOrLeave();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void askAgainOrLeave() {
+            waiting.removeIf(CompletableFuture::isDone);
+            if (!waiting.isEmpty()) {
+                if (!requested) request();
+            } else if (!requested) {
+                outbox.post(LEAVE_FORK);
+            }
+        }
+
+        private void onRevoked() {
+            Lease revoked;
+            lock.lock();
+            try {
+                revoked = holder;
+                holder = null;
+                // The fork forgot the request too
+                requested = false;
+                if (!waiting.isEmpty()) askAgainOrLeave();
+            } finally {
+                lock.unlock();
+            }
+            if (revoked != null) revoked.revoke(endpoint);
+        }
+
+        private void onLost() {
+            List<CompletableFuture<Lease>> failed;
+            Lease revoked;
+            lock.lock();
+            try {
+                lost = true;
+                failed = new ArrayList<>(waiting);
+                waiting.clear();
+                revoked = holder;
+                holder = null;
+            } finally {
+                lock.unlock();
+            }
+            forks.computeIfPresent(endpoint, (e, fork) -> fork.getNow(null) == this ? null : fork);
+            IOException failure = new IOException("Lost connection to " + endpoint);
+            for (CompletableFuture<Lease> acquisition : failed) acquisition.completeExceptionally(failure);
+            if (revoked != null) revoked.revoke(endpoint);
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                if (holder != null) outbox.post(RELEASE_FORK);
+                holder = null;
+                outbox.post(LEAVE_FORK);
+            } finally {
+                lock.unlock();
+            }
+            // The outbox writes in order, the connection closes after the goodbye
+            writers.execute(() -> {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /**
+     * Exclusive use of one or more forks until released or revoked.
+     */
+    public static final class Lease {
+        private final Set<ForkEndpoint> resources;
+        // The fork of a single lease, null for one made by acquireAll
+        private final RemoteFork fork;
+        private final List<Lease> parts;
+        private final CompletableFuture<ForkEndpoint> revoked = new CompletableFuture<>();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(RemoteFork fork) {
+            this.fork = fork;
+            resources = Collections.singleton(fork.endpoint);
+            parts = Collections.emptyList();
+        }
+
+        private Lease(List<Lease> parts) {
+            fork = null;
+            this.parts = new ArrayList<>(parts);
+            Set<ForkEndpoint> all = new HashSet<>();
+            for (Lease part : parts) {
+                all.addAll(part.resources);
+                part.revoked.thenAccept(revoked::complete);
+            }
+            resources = Collections.unmodifiableSet(all);
+        }
+
+        public Set<ForkEndpoint> resources() {
+            return resources;
+        }
+
+        /**
+         * @return false once released or revoked
+         */
+        public boolean isValid() {
+            return !released.get() && !revoked.isDone();
+        }
+
+        /**
+         * Completes with the first fork taken away before the lease was released: its lease expired at
+         * the fork server, or the connection to it was lost.
+         */
+        public CompletableFuture<ForkEndpoint> revoked() {
+            return revoked;
+        }
+
+        /**
+         * Give the forks back. Releasing twice does nothing.
+         */
+        public void release() {
+            if (!released.compareAndSet(false, true)) return;
+            if (fork != null) fork.release(this);
+            else parts.forEach(Lease::release);
+        }
+
+        private void revoke(ForkEndpoint endpoint) {
+            if (!released.get()) revoked.complete(endpoint);
+        }
+
+        @Override
+        public String toString() {
+            return "Lease" + resources;
+        }
+    }
+
+    /**
+     * Acquire the given forks together, hold them for a moment and report how long it took.
+     * Usage: {@code LockClient <name> <host:port#id>...}
+     */
+    public static void main(String[] args) throws Exception {
+        Set<ForkEndpoint> resources = new HashSet<>();
+        for (int i = 1; i < args.length; i++) resources.add(ForkEndpoint.parse(args[i]));
+        long leaseMillis = Long.getLong("dining.lease", 10000);
+        int rounds = Integer.getInteger("dining.lock.rounds", 10);
+        try (LockClient client = new LockClient(args[0], Transport.fromSystemProperties(), leaseMillis)) {
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                Lease lease = client.acquireAll(resources).get();
+                Log.info("Acquired %s in %d us", lease.resources(), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                Thread.sleep(10);
+                lease.release();
+            }
+        }
+    }
+}
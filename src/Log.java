@@ -0,0 +1,187 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger. Callers only check the level and copy the format and its arguments into a
+ * preallocated ring; a background writer formats and prints them, so logging never takes the
+ * console lock or builds strings on the calling thread.
+ * <p>
+ * The level comes from {@code dining.log.level} ({@code trace}, the default, {@code debug},
+ * {@code info}, {@code warn}, {@code error} or {@code off}) and is fixed at startup. Per-meal events
+ * (thinking, eating, fork traffic) are logged at TRACE, so {@code info} turns them off entirely.
+ * When the ring is full events are dropped, and the writer reports how many.
+ * <p>
+ * Every line is {@code <epoch millis> <level> [<thread>] <message>}; WARN and ERROR go to stderr,
+ * everything else to stdout.
+ */
+final class Log {
+    enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("dining.log.level", "trace").toUpperCase());
+    private static final int CAPACITY = Integer.getInteger("dining.log.buffer", 8192);
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    /**
+     * A ring slot. {@code sequence} says whose turn it is: a producer may claim position p when it
+     * equals p, the writer may read it when it equals p + 1.
+     */
+    private static final class Event {
+        private volatile long sequence;
+        private long timestamp;
+        private Level level;
+        private String thread;
+        private String format;
+        private int args;
+        private Object arg0;
+        private Object arg1;
+        private Object arg2;
+    }
+
+    private static final Event[] RING = new Event[Integer.highestOneBit(Math.max(2, CAPACITY - 1)) << 1];
+    private static final int MASK = RING.length - 1;
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static long head;
+    // Batched, flushed whenever the ring runs empty
+    private static final PrintStream OUT = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private static final PrintStream ERR = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 12), false);
+    private static final StringBuilder LINE = new StringBuilder(256);
+    private static final Formatter FORMATTER = new Formatter(LINE);
+
+    static {
+        for (int i = 0; i < RING.length; i++) {
+            RING[i] = new Event();
+            RING[i].sequence = i;
+        }
+        if (LEVEL != Level.OFF) {
+            Thread writer = new Thread(Log::drainForever, "Log Writer");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "Log Flusher"));
+        }
+    }
+
+    private Log() {
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    static void trace(String format) {
+        if (isEnabled(Level.TRACE)) publish(Level.TRACE, format, 0, null, null, null);
+    }
+
+    static void trace(String format, Object arg0) {
+        if (isEnabled(Level.TRACE)) publish(Level.TRACE, format, 1, arg0, null, null);
+    }
+
+    static void trace(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.TRACE)) publish(Level.TRACE, format, 2, arg0, arg1, null);
+    }
+
+    static void trace(String format, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.TRACE)) publish(Level.TRACE, format, 3, arg0, arg1, arg2);
+    }
+
+    static void info(String format) {
+        if (isEnabled(Level.INFO)) publish(Level.INFO, format, 0, null, null, null);
+    }
+
+    static void info(String format, Object arg0) {
+        if (isEnabled(Level.INFO)) publish(Level.INFO, format, 1, arg0, null, null);
+    }
+
+    static void info(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.INFO)) publish(Level.INFO, format, 2, arg0, arg1, null);
+    }
+
+    static void info(String format, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) publish(Level.INFO, format, 3, arg0, arg1, arg2);
+    }
+
+    static void warn(String format, Object arg0) {
+        if (isEnabled(Level.WARN)) publish(Level.WARN, format, 1, arg0, null, null);
+    }
+
+    static void warn(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.WARN)) publish(Level.WARN, format, 2, arg0, arg1, null);
+    }
+
+    private static void publish(Level level, String format, int args, Object arg0, Object arg1, Object arg2) {
+        Event event;
+        long position;
+        while (true) {
+            position = TAIL.get();
+            event = RING[(int) position & MASK];
+            long available = event.sequence - position;
+            if (available == 0 && TAIL.compareAndSet(position, position + 1)) break;
+            if (available < 0) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        }
+        event.timestamp = System.currentTimeMillis();
+        event.level = level;
+        event.thread = Thread.currentThread().getName();
+        event.format = format;
+        event.args = args;
+        event.arg0 = arg0;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.sequence = position + 1;
+    }
+
+    /**
+     * Print everything logged so far, for callers about to exit.
+     */
+    static void flush() {
+        drain();
+    }
+
+    private static void drainForever() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            if (!drain()) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Print every published event. Shared by the writer and the shutdown hook, hence synchronized.
+     * @return false if there was nothing to print
+     */
+    private static synchronized boolean drain() {
+        boolean printed = false;
+        Event event;
+        while ((event = RING[(int) head & MASK]).sequence == head + 1) {
+            PrintStream stream = event.level.compareTo(Level.WARN) >= 0 ? ERR : OUT;
+            LINE.setLength(0);
+            LINE.append(event.timestamp).append(' ').append(event.level.name());
+            for (int pad = event.level.name().length(); pad < 5; pad++) LINE.append(' ');
+            LINE.append(" [").append(event.thread).append("] ");
+            if (event.args == 0) LINE.append(event.format);
+            else FORMATTER.format(event.format, event.arg0, event.arg1, event.arg2);
+            stream.println(LINE);
+            event.thread = null;
+            event.format = null;
+            event.arg0 = null;
+            event.arg1 = null;
+            event.arg2 = null;
+            event.sequence = head + RING.length;
+            head++;
+            printed = true;
+        }
+        long dropped = DROPPED.getAndSet(0);
+        if (dropped > 0) ERR.println(String.format("%d WARN  [Log Writer] %d log events dropped, the ring is full", System.currentTimeMillis(), dropped));
+        if (printed || dropped > 0) {
+            OUT.flush();
+            ERR.flush();
+        }
+        return printed;
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Connects nodes of the same JVM without sockets or serialization: messages are handed over by
+ * reference through lock-free queues. Listeners are looked up by port only, the hostname is ignored.
+ */
+public class LoopbackTransport implements Transport {
+    static final LoopbackTransport SHARED = new LoopbackTransport();
+
+    // Marks the end of a pipe, and of a listener's accept queue
+    private static final Message EOF = new Message(Message.Kind.STOP);
+    private static final Connection CLOSED = new LoopbackConnection(null, null);
+
+    private final Map<Integer, LoopbackListener> listeners = new ConcurrentHashMap<>();
+
+    @Override
+    public Listener listen(int port) throws IOException {
+        LoopbackListener listener = new LoopbackListener(port);
+        if (listeners.putIfAbsent(port, listener) != null) throw new BindException("Port already in use: " + port);
+        return listener;
+    }
+
+    @Override
+    public Connection connect(String hostname, int port) throws IOException {
+        LoopbackListener listener = listeners.get(port);
+        if (listener == null) throw new ConnectException(String.format("Nothing listening at %s:%d", hostname, port));
+
+        Pipe toServer = new Pipe();
+        Pipe toClient = new Pipe();
+        listener.pending.add(new LoopbackConnection(toServer, toClient));
+        return new LoopbackConnection(toClient, toServer);
+    }
+
+    boolean isListening(int port) {
+        return listeners.containsKey(port);
+    }
+
+    private class LoopbackListener implements Listener {
+        private final int port;
+        private final BlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+
+        private LoopbackListener(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            try {
+                Connection connection = pending.take();
+                if (connection == CLOSED) throw new IOException("Listener closed");
+                return connection;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() {
+            listeners.remove(port, this);
+            pending.add(CLOSED);
+        }
+    }
+
+    private static class LoopbackConnection implements Connection {
+        private final Pipe in;
+        private final Pipe out;
+
+        private LoopbackConnection(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public MessageInput in() {
+            return in;
+        }
+
+        @Override
+        public MessageOutput out() {
+            return out;
+        }
+
+        @Override
+        public void close() {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * One direction of a connection: any number of writers, a single reader that parks while empty.
+     */
+    private static class Pipe implements MessageInput, MessageOutput {
+        private final Queue<Message> messages = new ConcurrentLinkedQueue<>();
+        private volatile Thread reader;
+        private volatile boolean closed;
+
+        @Override
+        public void write(Message message) throws IOException {
+            if (closed) throw new IOException("Connection closed");
+            messages.offer(message);
+            LockSupport.unpark(reader);
+        }
+
+        @Override
+        public Message read() throws IOException {
+            Message message;
+            while ((message = messages.poll()) == null) {
+                reader = Thread.currentThread();
+                // Check again after publishing the reader, so a concurrent write can't be missed
+                if (!messages.isEmpty()) continue;
+                LockSupport.park(this);
+                if (Thread.interrupted()) throw new InterruptedIOException();
+            }
+            return message == EOF ? null : message;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            messages.offer(EOF);
+            LockSupport.unpark(reader);
+        }
+    }
+}
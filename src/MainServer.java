@@ -1,101 +1,682 @@
-import javafx.util.Pair;
-
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
 
+/**
+ * Coordinates a table: registers its nodes, pushes the topology, starts dining and finally stops every
+ * node, collecting its final counters.
+ * <p>
+ * Which forks every seat needs comes from the {@link TableTopology}, a ring unless
+ * {@code dining.topology} says otherwise. The main server waits for one philosopher per seat and one
+ * fork per fork of the topology.
+ * <p>
+ * Hellos are read concurrently, so a slow node doesn't hold up registration, and SETUP, START and STOP
+ * are pushed to all nodes in parallel. A bounded run (see {@link LoadProfile}) stops by itself once every
+ * philosopher finished, an unbounded one when the main server is shut down.
+ * <p>
+ * Stopping drains in two phases: philosophers get STOP first, finish their current meal and report
+ * FINISHED, still handing forks over to neighbours that are not done yet. Only then forks get STOP and
+ * report how many meals they served, and all connections are closed so every node exits.
+ * <p>
+ * Every registered fork server gets the run id. A fork server that crashed may connect again while the
+ * table dines, with the run id of its {@link ForkJournal}; it takes over its old place and recovers its
+ * state from the journal, while the philosophers reconnect to it by themselves.
+ * <p>
+ * Fork grants are leases of {@code dining.lease} milliseconds, 10 s by default and {@code 0} for
+ * grants that never expire. The main server hands the length to every fork server in REGISTERED and
+ * to every philosopher in SETUP, so philosophers know how often to send heartbeats.
+ * <p>
+ * A ring of single fork servers on the timeout protocol changes while dining. A philosopher and a fork
+ * server that connect take a new seat at the end of the ring, and a node that sends LEAVE_TABLE takes
+ * its seat and the fork after it away. Only the neighbour seat gets a new SETUP and moves between
+ * meals; the rest of the table dines on. A leaving philosopher finishes its meal first, and a retired
+ * fork stops only once the neighbour moved off it. Seat changes run one at a time, on their own thread.
+ */
 public class MainServer {
-    private Map<Socket, Pair<Philosopher, Pair<ObjectInputStream, ObjectOutputStream>>> philosophers;
-    private Map<Socket, Pair<Fork, Pair<ObjectInputStream, ObjectOutputStream>>> forks;
+    private static final int PUSH_THREADS = 16;
+    private static final long STOP_TIMEOUT_SECONDS = 60;
 
+    private static final int MIN_SEATS = 2;
+    private static final Message STOP = new Message(Message.Kind.STOP);
 
-    private MainServer(int port, int numberOfPhilosophers) {
-        philosophers = new HashMap<>();
-        forks = new HashMap<>();
+    /**
+     * A registered node and what it reports.
+     */
+    private abstract static class Node {
+        // Replaced when a fork server rejoins
+        volatile Connection connection;
+        // FINISHED on the current connection
+        volatile CompletableFuture<Object[]> finished = new CompletableFuture<>();
+        // The machine of the node, as the main server sees it
+        final String host;
 
-        try {
-            ServerSocket connection = new ServerSocket(port);
+        private Node(Connection connection) {
+            this.connection = connection;
+            host = connection.peerHost();
+        }
+    }
 
-            for (int i = 0; i < 2*numberOfPhilosophers; i++) {
-                Socket conn = connection.accept();
-                ObjectInputStream in = new ObjectInputStream(conn.getInputStream());
-                ObjectOutputStream out = new ObjectOutputStream(conn.getOutputStream());
+    /**
+     * A registered philosopher.
+     */
+    private static final class PhilosopherNode extends Node {
+        private final String name;
+        // Completed by SEATED, after the philosopher moved to the forks of its last SETUP
+        private volatile CompletableFuture<Void> seated = CompletableFuture.completedFuture(null);
 
-                Object client = in.readObject();
+        private PhilosopherNode(Connection connection, String name) {
+            super(connection);
+            this.name = name;
+        }
 
-                if (client instanceof Philosopher) {
-                    philosophers.put(conn, new Pair<>((Philosopher) client, new Pair<>(in, out)));
-                    System.out.println(String.format("Philosopher %s connected!", ((Philosopher) client).getName()));
-                }
-                else if (client instanceof Fork) {
-                    forks.put(conn, new Pair<>((Fork) client, new Pair<>(in, out)));
-                    System.out.println("Fork connected!");
-                }
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A registered fork server, or fork host, with the forks it serves.
+     */
+    private static final class ForkNode extends Node {
+        private final List<ForkEndpoint> forks;
+
+        private ForkNode(Connection connection, List<ForkEndpoint> forks) {
+            super(connection);
+            this.forks = forks;
+        }
+
+        @Override
+        public String toString() {
+            return "Fork server " + forks.get(0);
+        }
+    }
+
+    private final Queue<PhilosopherNode> registeredPhilosophers = new ConcurrentLinkedQueue<>();
+    private final Queue<ForkNode> registeredForks = new ConcurrentLinkedQueue<>();
+    // One permit per registered node, a fork host counts once per fork
+    private final Semaphore registered = new Semaphore(0);
+    // Guards registering and setting the table from the registered nodes
+    private final ReentrantLock registration = new ReentrantLock();
+    private boolean registering = true;
+    // Tells a restarted fork server its journal is from this run
+    private final long runId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final long leaseMillis = Long.getLong("dining.lease", 10000);
+
+    // In seat order, and in fork order, which is also ring order on a table that changes
+    private List<PhilosopherNode> philosophers;
+    private List<ForkNode> forks;
+    // Whether nodes join and leave while dining, set before registration ends
+    private volatile boolean dynamic;
+    // Newcomers waiting to be seated in pairs
+    private final Queue<PhilosopherNode> joiningPhilosophers = new ConcurrentLinkedQueue<>();
+    private final Queue<ForkNode> joiningForks = new ConcurrentLinkedQueue<>();
+    // Serializes seat changes, and stopping against them; guards open, nextSeat and retiredMeals
+    private final ReentrantLock membership = new ReentrantLock(true);
+    // Seats change from once everybody started until stopping
+    private boolean open;
+    // Seat numbers of newcomers, which seed their durations
+    private int nextSeat;
+    private final Map<String, Integer> retiredMeals = new TreeMap<>();
+    private AcquisitionProtocol protocol;
+    private LoadProfile load;
+    private TableTopology topology;
+    private Transport transport;
+    private ExecutionMode executionMode;
+    private Executor pusher;
+    // Only set for the waiter protocol, listening right after the main server port
+    private int waiterPort;
+    private Waiter waiter;
+
+    private final CountDownLatch stopRequested = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    MainServer(int port, int numberOfPhilosophers, Transport transport) {
+        protocol = AcquisitionProtocol.fromSystemProperties();
+        load = LoadProfile.fromSystemProperties();
+        topology = TableTopology.fromSystemProperties(numberOfPhilosophers, load.getSeed());
+        topology.check(protocol);
+        this.transport = transport;
+        executionMode = ExecutionMode.fromSystemProperties();
+        pusher = executionMode.newExecutor("Main Server Push", PUSH_THREADS);
+        if (protocol == AcquisitionProtocol.WAITER) waiterPort = port + 1;
+
+        Transport.Listener listener = null;
+        try {
+            listener = transport.listen(port);
+            Transport.Listener accepted = listener;
+            // Keeps accepting while dining, for fork servers that rejoin
+            executionMode.start("Main Server Acceptor", () -> acceptNodes(accepted));
+            registered.acquire(numberOfPhilosophers + topology.forks());
+
+            // Set under the registration lock, so a node is either at the table or admitted afterwards
+            registration.lock();
+            try {
+                // Registration order is arbitrary, sorting keeps fork numbers, seats and seeds reproducible.
+                // Forks are numbered host by host, which keeps ring neighbours on one machine
+                List<ForkNode> served = new ArrayList<>(registeredForks);
+                served.sort(Comparator.comparing((ForkNode fork) -> fork.host)
+                        .thenComparingInt(fork -> fork.forks.get(0).getPort()));
+                forks = new CopyOnWriteArrayList<>(served);
+                List<PhilosopherNode> byName = new ArrayList<>(registeredPhilosophers);
+                byName.sort(Comparator.comparing(philosopher -> philosopher.name));
+                philosophers = new CopyOnWriteArrayList<>(place(byName));
+                nextSeat = philosophers.size();
+                dynamic = protocol == AcquisitionProtocol.TIMEOUT && topology.isRing() && forks.stream().allMatch(fork -> fork.forks.size() == 1);
+                registering = false;
+            } finally {
+                registration.unlock();
             }
 
             setupTopology();
+            if (!load.isBounded()) Runtime.getRuntime().addShutdownHook(new Thread(this::requestStop, "Main Server Stop"));
+            long startedAt = System.nanoTime();
             startDining();
-            // TODO stop dining
-            Thread.currentThread().join();
-        } catch (IOException | ClassNotFoundException | InterruptedException e) {
+            openSeats();
+            if (!load.isBounded()) stopRequested.await();
+            closeSeats();
+            stopDining(startedAt);
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
+        } finally {
+            stopped.countDown();
+            closeQuietly(listener);
         }
+    }
 
+    private static void closeQuietly(Transport.Listener listener) {
+        if (listener == null) return;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void acceptNodes(Transport.Listener listener) {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                Connection conn = listener.accept();
+                executionMode.start("Main Server Handshake", () -> handshake(conn));
+            }
+        } catch (IOException e) {
+            if (stopped.getCount() > 0) e.printStackTrace();
+        }
     }
 
-    private void startDining() {
-        Message startMessage = new Message(Message.Kind.START);
+    private void handshake(Connection conn) {
+        try {
+            Message hello = conn.in().read();
+            if (hello == null) return;
 
-        forks.forEach((socket, data) -> {
+            boolean dining;
+            Node node = null;
+            registration.lock();
             try {
-                data.getValue().getValue().writeObject(startMessage);
-            } catch (IOException e) {
-                e.printStackTrace();
+                dining = !registering;
+                if (!dining) node = register(conn, hello);
+            } finally {
+                registration.unlock();
             }
-        });
+            if (dining) admit(conn, hello);
+            else if (node != null) listen(node, conn);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        philosophers.forEach((socket, data) -> {
-            try {
-                data.getValue().getValue().writeObject(startMessage);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Add a node to the table being set. Callers hold the registration lock, so the REGISTERED reply of
+     * a fork server goes out before anything the table sends it.
+     * @return the node, or null if the hello is neither a philosopher's nor a fork server's
+     */
+    private Node register(Connection conn, Message hello) throws IOException {
+        if (hello.getKind() == Message.Kind.PHILOSOPHER_HELLO) {
+            String name = (String) hello.getMessage();
+            PhilosopherNode philosopher = new PhilosopherNode(conn, name);
+            registeredPhilosophers.add(philosopher);
+            Log.info("Philosopher %s connected!", name);
+            registered.release();
+            return philosopher;
+        }
+        if (hello.getKind() == Message.Kind.FORK_HELLO) {
+            // A fork host registers all of its forks over a single connection
+            List<ForkEndpoint> hosted = endpoints(conn, (Object[]) hello.getMessage());
+            ForkNode fork = new ForkNode(conn, hosted);
+            conn.out().write(new Message(new Object[] {runId, false, leaseMillis}, Message.Kind.REGISTERED));
+            registeredForks.add(fork);
+            Log.info(hosted.size() == 1 ? "Fork connected!" : "Fork host with %d forks connected!", hosted.size());
+            registered.release(hosted.size());
+            return fork;
+        }
+        return null;
+    }
+
+    /**
+     * Seat philosophers next to their forks, see {@link Placement}, and log how many fork messages
+     * will cross hosts.
+     */
+    private List<PhilosopherNode> place(List<PhilosopherNode> byName) {
+        List<String> forkHosts = new ArrayList<>();
+        for (ForkNode fork : forks) fork.forks.forEach(hosted -> forkHosts.add(fork.host));
+        String[] forkHost = forkHosts.toArray(new String[0]);
+        String[] nameHosts = byName.stream().map(philosopher -> philosopher.host).toArray(String[]::new);
+        int[] seats = Placement.seat(topology, forkHost, nameHosts);
+
+        List<PhilosopherNode> placed = new ArrayList<>(byName.size());
+        for (int philosopher : seats) placed.add(byName.get(philosopher));
+        String[] seatHosts = placed.stream().map(philosopher -> philosopher.host).toArray(String[]::new);
+        int hops = 0;
+        for (int seat = 0; seat < seatHosts.length; seat++) hops += topology.forksOf(seat).length;
+        Log.info("Placement: %d of %d fork hops cross hosts, %d when seated by name", Placement.remoteHops(topology, forkHost, seatHosts),
+                hops, Placement.remoteHops(topology, forkHost, Arrays.copyOf(nameHosts, seats.length)));
+        Placement.log(topology, forkHost, seatHosts);
+        return placed;
+    }
+
+    /**
+     * @return the forks of a fork server, at the address it connected from: the host it names itself
+     * by may only resolve on its own machine
+     */
+    private static List<ForkEndpoint> endpoints(Connection conn, Object[] hello) {
+        int firstId = (int) hello[2];
+        int count = (int) hello[3];
+        List<ForkEndpoint> hosted = new ArrayList<>(count);
+        for (int id = firstId; id < firstId + count; id++) hosted.add(new ForkEndpoint(conn.peerHost(), (int) hello[1], id));
+        return hosted;
+    }
+
+    /**
+     * A node connected while dining. A fork server of this run coming back replaces its old
+     * connection. On a table that changes, a new philosopher or fork server waits for a seat.
+     */
+    private void admit(Connection conn, Message hello) throws IOException {
+        if (hello.getKind() == Message.Kind.FORK_HELLO) {
+            Object[] endpoint = (Object[]) hello.getMessage();
+            if ((long) endpoint[4] == runId) {
+                rejoin(conn, endpoint);
+                return;
             }
-        });
+            if (dynamic && (int) endpoint[3] == 1) {
+                ForkNode fork = new ForkNode(conn, endpoints(conn, endpoint));
+                conn.out().write(new Message(new Object[] {runId, false, leaseMillis}, Message.Kind.REGISTERED));
+                joiningForks.add(fork);
+                Log.info("%s wants to join", fork);
+                executionMode.start("Main Server Membership", this::seatNewcomers);
+                listen(fork, conn);
+                return;
+            }
+        } else if (hello.getKind() == Message.Kind.PHILOSOPHER_HELLO && dynamic) {
+            PhilosopherNode philosopher = new PhilosopherNode(conn, (String) hello.getMessage());
+            joiningPhilosophers.add(philosopher);
+            Log.info("Philosopher %s wants to join", philosopher);
+            executionMode.start("Main Server Membership", this::seatNewcomers);
+            listen(philosopher, conn);
+            return;
+        }
+        Log.warn("Rejecting %s, the table is already dining", hello);
+        conn.close();
+    }
+
+    /**
+     * A fork server of this run came back: it takes over its old place.
+     */
+    private void rejoin(Connection conn, Object[] endpoint) throws IOException {
+        ForkNode rejoined = null;
+        for (ForkNode fork : forks) {
+            ForkEndpoint first = fork.forks.get(0);
+            if (first.getHostname().equals(conn.peerHost()) && first.getPort() == (int) endpoint[1]
+                    && fork.forks.size() == (int) endpoint[3]) rejoined = fork;
+        }
+        if (rejoined == null) {
+            Log.warn("Rejecting fork server %s:%s, it is not at the table", endpoint[0], endpoint[1]);
+            conn.close();
+            return;
+        }
+        Connection old = rejoined.connection;
+        rejoined.finished = new CompletableFuture<>();
+        rejoined.connection = conn;
+        old.close();
+        conn.out().write(new Message(new Object[] {runId, true, leaseMillis}, Message.Kind.REGISTERED));
+        Log.info("Fork server %s rejoined", rejoined.forks.get(0));
+        listen(rejoined, conn);
     }
 
-    private void setupTopology() {
-        // Transform philosophers map to list
-        ArrayList<Pair<Philosopher, Pair<ObjectInputStream, ObjectOutputStream>>> philosophersList = new ArrayList<>(philosophers.values());
-        // Transform forks map to list
-        ArrayList<Pair<Fork, Pair<ObjectInputStream, ObjectOutputStream>>> forksList = new ArrayList<>(forks.values());
+    /**
+     * Read what a node sends after its hello, until the connection closes: its FINISHED, and requests
+     * to leave. A node that goes away without finishing fails its FINISHED.
+     */
+    private void listen(Node node, Connection conn) {
+        CompletableFuture<Object[]> finished = node.finished;
+        try {
+            Message message;
+            while ((message = conn.in().read()) != null) {
+                switch (message.getKind()) {
+                    case FINISHED:
+                        finished.complete((Object[]) message.getMessage());
+                        break;
+                    case LEAVE_TABLE:
+                        executionMode.start("Main Server Membership", () -> leave(node));
+                        break;
+                    case SEATED:
+                        ((PhilosopherNode) node).seated.complete(null);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // Closed like at the end of the stream
+        }
+        finished.completeExceptionally(new IOException(node + " left without finishing"));
+        if (node instanceof PhilosopherNode) joiningPhilosophers.remove(node);
+        else joiningForks.remove(node);
+    }
+
+    /**
+     * Let seats change, and seat whoever connected since registration ended.
+     */
+    private void openSeats() {
+        membership.lock();
+        try {
+            open = true;
+        } finally {
+            membership.unlock();
+        }
+        seatNewcomers();
+    }
 
-        for (int i = 0; i < philosophersList.size(); i++) {
+    /**
+     * Stop seat changes. A bounded run first waits until every philosopher finished, newcomers included.
+     */
+    private void closeSeats() {
+        while (true) {
+            if (load.isBounded()) {
+                for (PhilosopherNode philosopher : philosophers) philosopher.finished.exceptionally(e -> null).join();
+            }
+            membership.lock();
             try {
-                int right = ((i + 1) == philosophersList.size()) ? 0 : (i + 1);
-
-                Fork leftServer = forksList.get(i).getKey();
-                String leftAddr = leftServer.getHostname();
-                int leftPort = leftServer.getForkServerPort();
-                
-                Fork rightServer = forksList.get(right).getKey();
-                String rightAddr = rightServer.getHostname();
-                int rightPort = rightServer.getForkServerPort();
-
-                // Send forks connection info to philosopher i
-                ObjectOutputStream out = philosophersList.get(i).getValue().getValue();
-                out.writeObject(new Message(new Object[] {leftAddr, leftPort, rightAddr, rightPort}, Message.Kind.SETUP));
-            } catch (IOException e) {
-                e.printStackTrace();
+                if (!load.isBounded() || philosophers.stream().allMatch(philosopher -> philosopher.finished.isDone())) {
+                    open = false;
+                    return;
+                }
+            } finally {
+                membership.unlock();
+            }
+        }
+    }
+
+    /**
+     * Seat waiting newcomers, a philosopher with a fork server each, at the end of the ring: the new
+     * fork goes between the last seat and the first fork, and only the last seat moves to it.
+     */
+    private void seatNewcomers() {
+        membership.lock();
+        try {
+            while (open && !joiningPhilosophers.isEmpty() && !joiningForks.isEmpty()) {
+                PhilosopherNode philosopher = joiningPhilosophers.poll();
+                ForkNode fork = joiningForks.poll();
+                int last = philosophers.size() - 1;
+                Message startMessage = new Message(load.toPayload(), Message.Kind.START);
+                fork.connection.out().write(startMessage);
+                forks.add(fork);
+                philosophers.add(philosopher);
+                philosopher.connection.out().write(ringSetup(last + 1, nextSeat++));
+                philosopher.connection.out().write(startMessage);
+                Log.info("Philosopher %s joined at seat %d, with fork %s", philosopher, last + 1, fork.forks.get(0));
+                reseat(last);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            membership.unlock();
+        }
+    }
+
+    /**
+     * Retire the seat of a node that asked to leave, with the fork after it; the seat before moves on
+     * to the following fork. The leaving philosopher finishes its meal first, and the retired fork stops
+     * only once its other philosopher moved off it, so no grant is cut short.
+     */
+    private void leave(Node node) {
+        membership.lock();
+        try {
+            if (joiningPhilosophers.remove(node) || joiningForks.remove(node)) {
+                Log.info("%s left before it was seated", node);
+                node.connection.close();
+                return;
+            }
+            int seat = node instanceof PhilosopherNode ? philosophers.indexOf(node) : forks.indexOf(node);
+            // Already retired, or stopping anyway
+            if (!open || seat < 0) return;
+            if (!dynamic || philosophers.size() <= MIN_SEATS) {
+                Log.warn("%s can't leave %s, letting it go like a crash", node,
+                        dynamic ? "a table of " + MIN_SEATS + " seats" : "a table that doesn't change");
+                node.connection.close();
+                return;
+            }
+            PhilosopherNode philosopher = philosophers.remove(seat);
+            ForkNode fork = forks.remove(seat);
+            Log.info("Retiring seat %d: %s and fork %s", seat, philosopher, fork.forks.get(0));
+            philosopher.connection.out().write(STOP);
+            Object[] finished = await(philosopher.finished, philosopher);
+            if (finished != null) {
+                retiredMeals.put(philosopher.name, (int) finished[1]);
+                Log.info("  %s ate %d times and left", philosopher, finished[1]);
+            }
+            reseat((seat - 1 + philosophers.size()) % philosophers.size());
+            fork.connection.out().write(STOP);
+            Object[] served = await(fork.finished, fork);
+            if (served != null) Log.info("  Fork server %s served %d meals and left", served[0], served[1]);
+            philosopher.connection.close();
+            fork.connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            membership.unlock();
+        }
+    }
+
+    /**
+     * Send a seat the forks it needs now and wait until it moved to them. Callers hold the membership
+     * lock.
+     */
+    private void reseat(int seat) throws IOException {
+        PhilosopherNode philosopher = philosophers.get(seat);
+        CompletableFuture<Void> seated = new CompletableFuture<>();
+        philosopher.seated = seated;
+        philosopher.connection.out().write(ringSetup(seat, seat));
+        await(seated, philosopher);
+    }
+
+    /**
+     * @return the result, or null if the node failed or didn't answer in time
+     */
+    private static <T> T await(CompletableFuture<T> future, Node node) {
+        return await(future, node, System.nanoTime() + TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SECONDS));
+    }
+
+    /**
+     * @param deadline {@link System#nanoTime()} by which the node must have answered
+     * @return the result, or null if the node failed or didn't answer in time
+     */
+    private static <T> T await(CompletableFuture<T> future, Node node, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            Log.warn("%s", e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            Log.warn("%s did not answer within %d s", node, STOP_TIMEOUT_SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private void startDining() throws InterruptedException {
+        Log.info("Starting with %s", load);
+        Message startMessage = new Message(load.toPayload(), Message.Kind.START);
+        broadcast(forks.size(), i -> forks.get(i).connection, i -> startMessage);
+        broadcast(philosophers.size(), i -> philosophers.get(i).connection, i -> startMessage);
+    }
+
+    /**
+     * Shutdown hook of unbounded runs: let the constructor drain the table, and wait for it. Philosophers
+     * and then fork servers get {@value #STOP_TIMEOUT_SECONDS} s each to answer STOP.
+     */
+    private void requestStop() {
+        stopRequested.countDown();
+        try {
+            if (!stopped.await(2 * STOP_TIMEOUT_SECONDS + 1, TimeUnit.SECONDS))
+                Log.warn("Table did not stop within %d s", 2 * STOP_TIMEOUT_SECONDS + 1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void stopDining(long startedAt) throws IOException, InterruptedException {
+        // Philosophers of a bounded run report by themselves
+        boolean stopSent = !load.isBounded();
+        if (stopSent) broadcast(philosophers.size(), i -> philosophers.get(i).connection, i -> STOP);
+        Map<String, Integer> meals = new TreeMap<>(retiredMeals);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SECONDS);
+        for (PhilosopherNode philosopher : philosophers) {
+            Object[] finished = stopSent ? await(philosopher.finished, philosopher, deadline) : finished(philosopher);
+            if (finished != null) meals.put(philosopher.name, (int) finished[1]);
+        }
+        report(meals, (System.nanoTime() - startedAt) / (double) TimeUnit.SECONDS.toNanos(1));
+
+        broadcast(forks.size(), i -> forks.get(i).connection, i -> STOP);
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SECONDS);
+        for (ForkNode fork : forks) {
+            Object[] finished = await(fork.finished, fork, deadline);
+            if (finished != null) Log.info("  Fork server %s served %d meals", finished[0], finished[1]);
+        }
+
+        for (PhilosopherNode philosopher : philosophers) philosopher.connection.close();
+        for (ForkNode fork : forks) fork.connection.close();
+        for (Node newcomer : joiningPhilosophers) newcomer.connection.close();
+        for (Node newcomer : joiningForks) newcomer.connection.close();
+        if (waiter != null) waiter.close();
+        Log.info("Table stopped");
+        Log.flush();
+    }
+
+    /**
+     * Wait for a node that reports by itself when done dining. One that crashed is left out of the
+     * report rather than keeping the others running.
+     * @return what the node reported, or null if it is missing
+     */
+    private static Object[] finished(Node node) throws InterruptedException {
+        try {
+            return node.finished.get();
+        } catch (ExecutionException e) {
+            Log.warn("%s", e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Print throughput, meal counts and Jain's fairness index, (sum x)^2 / (n * sum x^2), which is 1
+     * when everybody ate equally often.
+     */
+    private void report(Map<String, Integer> meals, double seconds) {
+        long total = 0;
+        double squares = 0;
+        for (int count : meals.values()) {
+            total += count;
+            squares += (double) count * count;
+        }
+        double fairness = squares == 0 ? 1 : total * (double) total / (meals.size() * squares);
+
+        Log.info("Run finished: %d meals in %.2f s", total, seconds);
+        Log.info("Throughput: %.1f meals/s, Jain's fairness index: %.4f", total / seconds, fairness);
+        meals.forEach((name, count) -> Log.info("  %s ate %d times", name, count));
+    }
+
+    /**
+     * Write a message to every connection in parallel and wait until all of them are written.
+     */
+    private void broadcast(int count, IntFunction<Connection> connections, IntFunction<Message> messages) throws InterruptedException {
+        CountDownLatch sent = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            Connection connection = connections.apply(i);
+            Message message = messages.apply(i);
+            pusher.execute(() -> {
+                try {
+                    connection.out().write(message);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    sent.countDown();
+                }
+            });
+        }
+        sent.await();
+    }
+
+    private void setupTopology() throws IOException, InterruptedException {
+        // Flatten the forks of every fork server to a single list
+        ArrayList<ForkEndpoint> forksList = new ArrayList<>();
+        forks.forEach(fork -> forksList.addAll(fork.forks));
+
+        Log.info("Table: %s", topology);
+        // Philosophers connect to the waiter while handling SETUP, so it must be listening by then
+        if (protocol == AcquisitionProtocol.WAITER) waiter = new Waiter(transport, waiterPort, topology, leaseMillis);
+
+        broadcast(philosophers.size(), i -> philosophers.get(i).connection, i -> {
+            int[] needed = topology.forksOf(i);
+            ForkEndpoint[] seatForks = new ForkEndpoint[needed.length];
+            boolean[] holds = new boolean[needed.length];
+            for (int j = 0; j < needed.length; j++) {
+                seatForks[j] = forksList.get(needed[j]);
+                holds[j] = topology.holdsInitially(i, needed[j]);
             }
+            return setup(i, seatForks, holds);
+        });
+    }
+
+    /**
+     * @return the SETUP of a seat of a ring that changed, with the seat number that seeds it
+     */
+    private Message ringSetup(int index, int seat) {
+        ForkEndpoint[] seatForks = {forks.get(index).forks.get(0), forks.get((index + 1) % forks.size()).forks.get(0)};
+        return setup(seat, seatForks, new boolean[seatForks.length]);
+    }
+
+    /**
+     * @return forks connection info of a philosopher. The waiter host is left empty: the waiter runs
+     * here, and philosophers reach it at the address they reached the main server at
+     */
+    private Message setup(int seat, ForkEndpoint[] seatForks, boolean[] holds) {
+        String[] hosts = new String[seatForks.length];
+        int[] ports = new int[seatForks.length];
+        int[] ids = new int[seatForks.length];
+        for (int j = 0; j < seatForks.length; j++) {
+            hosts[j] = seatForks[j].getHostname();
+            ports[j] = seatForks[j].getPort();
+            ids[j] = seatForks[j].getId();
         }
+        return new Message(new Object[] {protocol, seat, "", waiterPort, hosts, ports, ids, holds, leaseMillis}, Message.Kind.SETUP);
     }
 
     public static void main(String[] args) {
-        new MainServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        new MainServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Transport.fromSystemProperties());
     }
 }
@@ -9,7 +9,36 @@ public class Message implements Serializable {
     private Object message;
     private Kind kind;
 
-    public enum Kind {FORK_ACQUIRED, FORK_IN_USE, RELEASE_FORK, REQUEST_FORK, SETUP, START, STOP}
+    /**
+     * Message kinds. The code is what goes on the wire, so never reuse or renumber one.
+     */
+    public enum Kind {
+        FORK_ACQUIRED(1), FORK_IN_USE(2), RELEASE_FORK(3), REQUEST_FORK(4), SETUP(5), START(6), STOP(7),
+        PHILOSOPHER_HELLO(8), FORK_HELLO(9), CONNECT_FORK(10), FORK_REQUESTED(11), ACQUIRE_FORKS(12), FINISHED(13), LEAVE_FORK(14),
+        REGISTERED(15), FORK_REVOKED(16), HEARTBEAT(17), LEAVE_TABLE(18), SEATED(19);
+
+        private static final Kind[] BY_CODE = new Kind[20];
+
+        static {
+            for (Kind kind : values()) BY_CODE[kind.code] = kind;
+        }
+
+        private final byte code;
+
+        Kind(int code) {
+            this.code = (byte) code;
+        }
+
+        byte getCode() {
+            return code;
+        }
+
+        static Kind fromCode(byte code) {
+            Kind kind = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+            if (kind == null) throw new IllegalArgumentException("Unknown message kind: " + code);
+            return kind;
+        }
+    }
 
     Message(Kind kind) {
         this("", kind);
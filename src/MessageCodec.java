@@ -0,0 +1,26 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Turns {@link Message}s into bytes and back. Every node of a table must use the same codec, which
+ * is chosen with the {@code dining.codec} system property ({@code binary}, the default, or
+ * {@code serialized}).
+ */
+public interface MessageCodec {
+    MessageOutput newOutput(OutputStream out) throws IOException;
+
+    MessageInput newInput(InputStream in) throws IOException;
+
+    static MessageCodec fromSystemProperties() {
+        String name = System.getProperty("dining.codec", "binary");
+        switch (name) {
+            case "binary":
+                return new BinaryMessageCodec();
+            case "serialized":
+                return new SerializedMessageCodec();
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + name);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reading end of a connection.
+ */
+public interface MessageInput extends Closeable {
+    /**
+     * Blocks until the next message arrives.
+     * @return the message, or {@code null} when the peer closed the connection
+     */
+    Message read() throws IOException;
+}
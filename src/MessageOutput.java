@@ -0,0 +1,23 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writing end of a connection. Each {@link #write(Message)} sends exactly one message and flushes it.
+ */
+public interface MessageOutput extends Closeable {
+    void write(Message message) throws IOException;
+
+    /**
+     * Send a message with the next write or {@link #flush()}, so messages sent together can share a
+     * system call. Outputs that don't buffer send it right away.
+     */
+    default void writeBuffered(Message message) throws IOException {
+        write(message);
+    }
+
+    /**
+     * Send whatever {@link #writeBuffered(Message)} held back.
+     */
+    default void flush() throws IOException {
+    }
+}
@@ -0,0 +1,73 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Per JVM registry of the acquisition metrics. Every metric is registered as an MXBean named
+ * {@code dining:type=<type>,name="<name>"}, and with {@code -Ddining.metrics.interval=<seconds>} all
+ * of them are also printed that often.
+ * <p>
+ * Looking a metric up goes through a concurrent map, so hot paths should keep the instance around.
+ */
+final class Metrics {
+    static final String PHILOSOPHER_ACQUIRE_MICROS = "PhilosopherAcquireMicros";
+    static final String FORK_ACQUIRE_MICROS = "ForkAcquireMicros";
+    static final String FORK_QUEUE_DEPTH = "ForkQueueDepth";
+    static final String WAITER_QUEUE_DEPTH = "WaiterQueueDepth";
+    static final String FAILED_ROUNDS = "FailedRounds";
+    static final String MEALS = "Meals";
+    static final String REVOKED_LEASES = "RevokedLeases";
+    static final String MUX_BATCH_FRAMES = "MuxBatchFrames";
+
+    private static final Map<String, Object> METRICS = new ConcurrentHashMap<>();
+
+    static {
+        long interval = Long.getLong("dining.metrics.interval", 0);
+        if (interval > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "Metrics Dumper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(Metrics::dump, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    static Histogram histogram(String type, String name) {
+        return register(type, name, Histogram::new);
+    }
+
+    static RateCounter counter(String type, String name) {
+        return register(type, name, RateCounter::new);
+    }
+
+    /**
+     * Print a snapshot of every metric, sorted by name.
+     */
+    static void dump() {
+        new TreeMap<>(METRICS).forEach((name, metric) -> Log.info("%s %s", name, metric));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <M> M register(String type, String name, Supplier<M> factory) {
+        return (M) METRICS.computeIfAbsent(String.format("dining:type=%s,name=%s", type, ObjectName.quote(name)), objectName -> {
+            M metric = factory.get();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metric, new ObjectName(objectName));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            return metric;
+        });
+    }
+}
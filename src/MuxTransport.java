@@ -0,0 +1,441 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Carries all the connections of a process to one host and port over a single socket, a session, with
+ * every connection a channel of it. A frame is the channel id, the frame type and, for data, a
+ * {@link BinaryMessageCodec} frame.
+ * <p>
+ * Writers append frames to the session buffer and whoever gets to the socket first writes everything
+ * appended so far, so messages written at the same time share a system call, and
+ * {@link MessageOutput#writeBuffered(Message)} holds messages back for the next flush: a philosopher
+ * asking for both forks behind one session sends both requests in one write.
+ * <p>
+ * Opening and closing a channel are frames too. The connecting side closes the socket with the last
+ * channel, and a lost socket ends every channel of its session. Once a listener closed, its sessions
+ * turn new channels away and close with their last channel, so reconnecting fails like with plain
+ * sockets. Each session has a reader thread that hands messages to the channels.
+ * <p>
+ * Every node of the table must use it ({@code dining.transport=mux}) with the binary codec. A
+ * {@link ForkHost} only serves plain connections.
+ */
+public class MuxTransport implements Transport {
+    static final MuxTransport SHARED = new MuxTransport();
+
+    private static final byte OPEN = 0;
+    private static final byte DATA = 1;
+    private static final byte CLOSE = 2;
+    // Marks the end of a channel, and of a listener's accept queue
+    private static final Message EOF = new Message(Message.Kind.STOP);
+    private static final Channel CLOSED = new Channel(null, -1);
+
+    // Sessions this process opened, by remote host and port
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Set<Integer> listening = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public Listener listen(int port) throws IOException {
+        MuxListener listener = new MuxListener(new ServerSocket(port), port);
+        listening.add(port);
+        daemon("Mux Acceptor " + port, listener::acceptSessions);
+        return listener;
+    }
+
+    @Override
+    public Connection connect(String hostname, int port) throws IOException {
+        while (true) {
+            // A session closing with its last channel takes no new ones, the next attempt opens another
+            Channel channel = session(hostname, port).open();
+            if (channel != null) return channel;
+        }
+    }
+
+    private Session session(String hostname, int port) throws IOException {
+        String key = hostname + ":" + port;
+        synchronized (sessions) {
+            Session session = sessions.get(key);
+            if (session != null) return session;
+            session = new Session(new Socket(hostname, port), key, null);
+            sessions.put(key, session);
+            return session;
+        }
+    }
+
+    /**
+     * @return whether a listener of this process is bound to the port
+     */
+    boolean isListening(int port) {
+        return listening.contains(port);
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private class MuxListener implements Listener {
+        private final ServerSocket serverSocket;
+        private final int port;
+        private final BlockingQueue<Channel> accepted = new LinkedBlockingQueue<>();
+        private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed;
+
+        private MuxListener(ServerSocket serverSocket, int port) {
+            this.serverSocket = serverSocket;
+            this.port = port;
+        }
+
+        private void acceptSessions() {
+            try {
+                while (!closed) new Session(serverSocket.accept(), null, this);
+            } catch (IOException e) {
+                if (!closed) e.printStackTrace();
+            }
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            try {
+                Channel channel = accepted.take();
+                if (channel != CLOSED) return channel;
+                accepted.add(CLOSED);
+                throw new IOException("Listener closed");
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            listening.remove(port);
+            accepted.add(CLOSED);
+            serverSocket.close();
+            for (Session session : sessions) session.endIfIdle();
+        }
+    }
+
+    /**
+     * One socket and its channels.
+     */
+    private final class Session implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream in;
+        // Null for an accepted session
+        private final String key;
+        // Where channels opened by the peer go, null for a session this process opened
+        private final MuxListener listener;
+        private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+        private final Histogram batchFrames;
+
+        // Guards pending, pendingFrames, nextChannel and closed
+        private final ReentrantLock bufferLock = new ReentrantLock();
+        // Held while writing to the socket, guards writing
+        private final ReentrantLock flushLock = new ReentrantLock();
+        private ByteBuffer pending = ByteBuffer.allocate(1024);
+        private ByteBuffer writing = ByteBuffer.allocate(1024);
+        private int pendingFrames;
+        private int nextChannel;
+        private boolean closed;
+
+        private Session(Socket socket, String key, MuxListener listener) throws IOException {
+            this.socket = socket;
+            this.key = key;
+            this.listener = listener;
+            // Frames are tiny and often sent back to back, Nagle would hold the second write for an ACK
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            batchFrames = Metrics.histogram(Metrics.MUX_BATCH_FRAMES, socket.getRemoteSocketAddress().toString());
+            if (listener != null) listener.sessions.add(this);
+            daemon("Mux Session Reader " + socket.getRemoteSocketAddress(), this);
+        }
+
+        /**
+         * Open a channel to the peer's listener.
+         * @return the channel, or null if the session closed meanwhile
+         */
+        private Channel open() throws IOException {
+            Channel channel;
+            bufferLock.lock();
+            try {
+                if (closed) return null;
+                channel = new Channel(this, nextChannel++);
+                channels.put(channel.id, channel);
+                append(channel.id, OPEN, null);
+            } finally {
+                bufferLock.unlock();
+            }
+            flush();
+            return channel;
+        }
+
+        private void append(int channel, byte type, Message message) throws IOException {
+            bufferLock.lock();
+            try {
+                if (closed) throw new IOException("Session closed");
+                while (true) {
+                    int position = pending.position();
+                    try {
+                        pending.putInt(channel).put(type);
+                        if (message != null) BinaryMessageCodec.encode(message, pending);
+                        break;
+                    } catch (BufferOverflowException e) {
+                        pending.position(position);
+                        ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+                        pending.flip();
+                        pending = bigger.put(pending);
+                    }
+                }
+                pendingFrames++;
+            } finally {
+                bufferLock.unlock();
+            }
+        }
+
+        /**
+         * Write every frame appended so far, unless another flush already took them.
+         */
+        private void flush() throws IOException {
+            flushLock.lock();
+            try {
+                int frames;
+                bufferLock.lock();
+                try {
+                    if (pending.position() == 0) return;
+                    ByteBuffer batch = pending;
+                    pending = writing;
+                    writing = batch;
+                    frames = pendingFrames;
+                    pendingFrames = 0;
+                } finally {
+                    bufferLock.unlock();
+                }
+                out.write(writing.array(), 0, writing.position());
+                writing.clear();
+                batchFrames.record(frames);
+            } catch (IOException e) {
+                end();
+                throw e;
+            } finally {
+                flushLock.unlock();
+            }
+        }
+
+        /**
+         * A channel of this session closed, tell the peer.
+         */
+        private void closed(Channel channel) {
+            channels.remove(channel.id);
+            sendClose(channel.id);
+            endIfIdle();
+        }
+
+        private void sendClose(int channel) {
+            try {
+                append(channel, CLOSE, null);
+                flush();
+            } catch (IOException ignored) {
+                // The peer is gone, so is the channel
+            }
+        }
+
+        /**
+         * End the session if it has no channel left and won't get any: on the connecting side, or once
+         * the listener closed.
+         */
+        private void endIfIdle() {
+            if (listener != null && !listener.closed) return;
+            bufferLock.lock();
+            try {
+                // Closed in the same section, so open() can't add a channel after the check
+                if (closed || !channels.isEmpty()) return;
+                closed = true;
+            } finally {
+                bufferLock.unlock();
+            }
+            shutdown();
+        }
+
+        /**
+         * Read frames and hand them to the channels until the socket closes.
+         */
+        @Override
+        public void run() {
+            ByteBuffer header = ByteBuffer.allocate(BinaryMessageCodec.HEADER_SIZE);
+            ByteBuffer body = ByteBuffer.allocate(256);
+            try {
+                while (true) {
+                    int id = in.readInt();
+                    byte type = in.readByte();
+                    switch (type) {
+                        case OPEN:
+                            if (listener == null) throw new ProtocolException("Channel opened by a listening peer");
+                            if (listener.closed) {
+                                sendClose(id);
+                                endIfIdle();
+                                break;
+                            }
+                            Channel opened = new Channel(this, id);
+                            bufferLock.lock();
+                            try {
+                                // Ending meanwhile, the peer gets its channel ended with the socket
+                                if (closed) break;
+                                channels.put(id, opened);
+                            } finally {
+                                bufferLock.unlock();
+                            }
+                            listener.accepted.add(opened);
+                            break;
+                        case DATA:
+                            in.readFully(header.array());
+                            int length = BinaryMessageCodec.bodyLength(header, 0);
+                            if (length > body.capacity()) body = ByteBuffer.allocate(Math.max(length, body.capacity() * 2));
+                            body.clear().limit(length);
+                            in.readFully(body.array(), 0, length);
+                            Message message = BinaryMessageCodec.decodeBody(header.get(3), body);
+                            // Frames still on their way to a channel closed here are dropped
+                            Channel channel = channels.get(id);
+                            if (channel != null) channel.inbound.add(message);
+                            break;
+                        case CLOSE:
+                            Channel closedByPeer = channels.remove(id);
+                            if (closedByPeer != null) closedByPeer.inbound.add(EOF);
+                            break;
+                        default:
+                            throw new ProtocolException("Bad mux frame type: " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                // The peer closed the session
+            } catch (IOException e) {
+                bufferLock.lock();
+                try {
+                    if (!closed) Log.trace("Lost session with %s: %s", socket.getRemoteSocketAddress(), e.getMessage());
+                } finally {
+                    bufferLock.unlock();
+                }
+            } finally {
+                end();
+            }
+        }
+
+        /**
+         * Close the socket and end every channel.
+         */
+        private void end() {
+            bufferLock.lock();
+            try {
+                closed = true;
+            } finally {
+                bufferLock.unlock();
+            }
+            shutdown();
+        }
+
+        /**
+         * The rest of {@link #end()}, once the session is marked closed.
+         */
+        private void shutdown() {
+            if (key != null) sessions.remove(key, this);
+            else listener.sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (Channel channel : channels.values()) channel.inbound.add(EOF);
+            channels.clear();
+        }
+    }
+
+    /**
+     * One connection inside a session.
+     */
+    private static final class Channel implements Connection, MessageInput, MessageOutput {
+        private final Session session;
+        private final int id;
+        private final BlockingQueue<Message> inbound = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        private Channel(Session session, int id) {
+            this.session = session;
+            this.id = id;
+        }
+
+        @Override
+        public MessageInput in() {
+            return this;
+        }
+
+        @Override
+        public MessageOutput out() {
+            return this;
+        }
+
+        @Override
+        public Message read() throws IOException {
+            try {
+                Message message = inbound.take();
+                if (message != EOF) return message;
+                // Every later read sees the end too
+                inbound.add(EOF);
+                return null;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void write(Message message) throws IOException {
+            writeBuffered(message);
+            session.flush();
+        }
+
+        @Override
+        public void writeBuffered(Message message) throws IOException {
+            if (closed) throw new IOException("Connection closed");
+            session.append(id, DATA, message);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            session.flush();
+        }
+
+        @Override
+        public String peerHost() {
+            return session.socket.getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            inbound.add(EOF);
+            session.closed(this);
+        }
+
+        @Override
+        public String toString() {
+            return session.socket.getRemoteSocketAddress() + "#" + id;
+        }
+    }
+}
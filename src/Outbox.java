@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Messages waiting to be written to one connection, so deciding what to send never waits for a
+ * socket. Posting to an empty outbox schedules a drain on the executor, which writes until the outbox
+ * is empty again: messages go out in order, one connection ties up at most one executor thread, and a
+ * slow philosopher only delays its own replies. Messages posted while a drain runs are flushed
+ * together once it caught up.
+ */
+final class Outbox implements Runnable {
+    private final Connection connection;
+    private final Executor writers;
+    private final Queue<Message> messages = new ConcurrentLinkedQueue<>();
+    // Posted and not written yet, the drain runs while it is above zero
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean failed;
+
+    Outbox(Connection connection, Executor writers) {
+        this.connection = connection;
+        this.writers = writers;
+    }
+
+    void post(Message message) {
+        messages.add(message);
+        if (pending.getAndIncrement() == 0) writers.execute(this);
+    }
+
+    @Override
+    public void run() {
+        do {
+            Message message = messages.poll();
+            // Once a write failed the connection is gone, the rest is dropped
+            if (failed) continue;
+            try {
+                connection.out().writeBuffered(message);
+                // Whatever is posted after this check is flushed by this drain too
+                if (pending.get() == 1) connection.out().flush();
+            } catch (IOException e) {
+                failed = true;
+                Log.trace("Cannot reach %s: %s", connection, e.getMessage());
+            }
+        } while (pending.decrementAndGet() > 0);
+    }
+}
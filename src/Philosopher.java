@@ -1,45 +1,147 @@
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.net.Socket;
-import java.util.Objects;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A philosopher needs the forks of its seat in the {@link TableTopology}, two in a ring, and talks to
+ * each of them over its own connection; forks are referred to by their position in the SETUP list.
+ * With a {@code dining.session} size and the waiter protocol it only needs a random subset of them
+ * per meal.
+ * <p>
+ * When a fork server goes away the philosopher keeps connecting again, and tells the restarted fork
+ * what it holds, so the table dines on once the fork recovered its journal.
+ * <p>
+ * Grants are leases. Every message to a fork or to the waiter renews them, and a heartbeat goes to
+ * whichever was not written to for a third of the lease. A philosopher that gets FORK_REVOKED no longer
+ * holds the fork, and asks again when it still needs it.
+ * <p>
+ * A timeout round that fails leaves the forks it got and pauses before asking again, for as long as
+ * its {@link Backoff} says, so neighbours that failed together don't retry in lockstep.
+ * <p>
+ * On a table that changes while dining, a SETUP that comes later moves the philosopher to other forks:
+ * between meals it leaves the forks it no longer needs, connects to the new ones and tells the main
+ * server with SEATED. Run on its own, a philosopher asks the main server to leave the table when its
+ * process is shut down, and waits until it was let go.
+ */
 @SuppressWarnings("PointlessBooleanExpression")
-public class Philosopher implements Runnable, Serializable {
+public class Philosopher implements Runnable {
+    private static final long RECONNECT_MILLIS = 100;
+    private static final long LEAVE_TIMEOUT_SECONDS = 60;
+    private static final Message REQUEST_FORK = new Message(Message.Kind.REQUEST_FORK);
+    private static final Message LEAVE_FORK = new Message(Message.Kind.LEAVE_FORK);
+    private static final Message HEARTBEAT = new Message(Message.Kind.HEARTBEAT);
+
     private String name;
 
-    transient private String mainServerAddress;
+    private String mainServerAddress;
 
-    transient private int mainServerPort;
-    transient private Socket mainServerConnection;
-    transient private Socket leftForkServerConnection;
+    private int mainServerPort;
+    private Connection mainServerConnection;
+    // Replaced when a fork server restarts
+    private AtomicReferenceArray<Connection> forkConnections;
+    // Replaced when the philosopher moves to another fork
+    private AtomicReferenceArray<ForkEndpoint> forkEndpoints;
+    // Forks of a later SETUP, until the philosopher moved to them
+    private final AtomicReference<ForkEndpoint[]> move = new AtomicReference<>();
 
-    transient private ObjectOutputStream leftForkServerOutputStream;
-    transient private Socket rightForkServerConnection;
+    private boolean acquiredForks[];
+    // Positions of the forks needed for the current meal, and every position to draw them from
+    private int[] session;
+    private int[] positions;
+    // Guards acquiredForks; a lock instead of a monitor so waiting never pins a virtual thread
+    private final ReentrantLock forksLock = new ReentrantLock();
+    private final Condition forkArrived = forksLock.newCondition();
+    // Whether requestForks waits for the session, guarded by forksLock
+    private boolean requesting;
+    // Whether each fork has this philosopher queued, and whether it answered FORK_IN_USE, guarded by forksLock
+    private boolean[] queued;
+    private boolean[] inUse;
+    // Paces the rounds of the timeout protocol, guarded by forksLock
+    private final Backoff backoff = Backoff.fromSystemProperties();
 
-    transient private ObjectOutputStream rightForkServerOutputStream;
+    private boolean gotToEat;
 
-    transient private boolean acquiredForks[];
+    private AcquisitionProtocol protocol;
+    // Only used by the hygienic protocol
+    private HygienicForks hygienicForks;
+    // Only used by the waiter protocol, which replaces the fork connections
+    private Connection waiterConnection;
+    private boolean waiterGranted;
 
-    private boolean gotToEat;
+    // Serializes writes to forks, the waiter and the main server, which several threads share
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // When every fork, and the waiter, was last written to, guarded by sendLock
+    private long[] lastSent;
+    private long waiterLastSent;
+    // 0 when grants never expire
+    private long leaseMillis;
+
+    private Transport transport;
+    private ExecutionMode executionMode;
+
+    private int seat;
+    private LoadProfile load;
+    private DurationDistribution thinkTime;
+    private DurationDistribution eatTime;
+    private SplittableRandom random;
+    // Draws the backoff pauses, apart from random so the think and eat durations stay reproducible
+    private final SplittableRandom jitter = new SplittableRandom();
+    // Counted down by STOP, which also cuts thinking and eating short
+    private final CountDownLatch stopRequested = new CountDownLatch(1);
+    private volatile boolean leaving;
+    // Reported FINISHED, losing a fork server is expected from now on
+    private volatile boolean finished;
+    // Counted down once the main server let the philosopher go
+    private final CountDownLatch left = new CountDownLatch(1);
 
-    private Philosopher(String name, String mainServerAddress, int mainServerPort) {
+    // When the pending REQUEST_FORK of each fork was sent, read by the fork listeners
+    private AtomicLongArray requestedAt;
+    private Histogram[] forkAcquireMicros;
+    private Histogram acquireMicros;
+    private RateCounter meals;
+    private RateCounter failedRounds;
+    // Null unless dining.trace.dir is set
+    private EventTrace trace;
+
+    Philosopher(String name, String mainServerAddress, int mainServerPort, Transport transport) {
+        this(name, mainServerAddress, mainServerPort, transport, false);
+    }
+
+    /**
+     * @param leaveOnShutdown whether to ask the main server to leave the table when the process is shut down
+     */
+    Philosopher(String name, String mainServerAddress, int mainServerPort, Transport transport, boolean leaveOnShutdown) {
         this.name = name;
         this.mainServerAddress = mainServerAddress;
         this.mainServerPort = mainServerPort;
-        acquiredForks = new boolean[2];
+        this.transport = transport;
         gotToEat = false;
+        executionMode = ExecutionMode.fromSystemProperties();
+        acquireMicros = Metrics.histogram(Metrics.PHILOSOPHER_ACQUIRE_MICROS, name);
+        meals = Metrics.counter(Metrics.MEALS, name);
+        failedRounds = Metrics.counter(Metrics.FAILED_ROUNDS, name);
+        trace = EventTrace.open(name, false);
+        if (leaveOnShutdown) Runtime.getRuntime().addShutdownHook(new Thread(this::leaveTable, "Leave Table"));
         connectToMainServer();
     }
 
     private void connectToMainServer() {
         try {
-            System.err.println("Connecting to main server ...");
-            mainServerConnection = new Socket(mainServerAddress, mainServerPort);
-            System.err.println("Connection established!");
-            ObjectOutputStream mainServerOutputStream = new ObjectOutputStream(mainServerConnection.getOutputStream());
-            mainServerOutputStream.writeObject(this);
+            Log.info("Connecting to main server ...");
+            mainServerConnection = transport.connect(mainServerAddress, mainServerPort);
+            Log.info("Connection established!");
+            mainServerConnection.out().write(new Message(name, Message.Kind.PHILOSOPHER_HELLO));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -49,181 +151,737 @@ public class Philosopher implements Runnable, Serializable {
 
     private void listenMainServer() {
         try {
-            ObjectInputStream mainServerInputStream = new ObjectInputStream(mainServerConnection.getInputStream());
             Message message;
-            while ((message = (Message) mainServerInputStream.readObject()) != null) {
+            while ((message = mainServerConnection.in().read()) != null) {
                 switch (message.getKind()) {
                     case START:
-                        new Thread(() -> listenForkServer(leftForkServerConnection), "Left Fork Server Listener Thread").start();
-                        new Thread(() -> listenForkServer(rightForkServerConnection), "Right Fork Server Listener Thread").start();
-                        new Thread(this).start();
+                        load = LoadProfile.fromPayload((Object[]) message.getMessage());
+                        thinkTime = load.think();
+                        eatTime = load.eat();
+                        random = load.random(seat);
+                        if (leaseMillis > 0) executionMode.start("Heartbeat Thread", this::sendHeartbeats);
+                        if (waiterConnection != null) {
+                            executionMode.start("Waiter Listener Thread", this::listenWaiter);
+                            executionMode.start(name, this);
+                            break;
+                        }
+                        for (int fork = 0; fork < forkConnections.length(); fork++) {
+                            int listened = fork;
+                            executionMode.start("Fork Server Listener Thread " + fork, () -> listenForkServer(listened));
+                        }
+                        executionMode.start(name, this);
                         break;
                     case STOP:
-                        // TODO end program
+                        stopRequested.countDown();
+                        // Wake up a philosopher waiting for forks, it gives up
+                        if (hygienicForks != null) hygienicForks.stop();
+                        forksLock.lock();
+                        try {
+                            forkArrived.signalAll();
+                        } finally {
+                            forksLock.unlock();
+                        }
                         break;
                     case SETUP:
-                        setupForkConnection((Object[]) message.getMessage());
+                        if (forkConnections == null && waiterConnection == null) setupForkConnection((Object[]) message.getMessage());
+                        else moveLater((Object[]) message.getMessage());
                         break;
                 }
             }
-        } catch (IOException | ClassNotFoundException e) {
+            // The main server closes the connection once every philosopher finished
+            cleanup();
+        } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            left.countDown();
+        }
+    }
+
+    /**
+     * Shutdown hook: ask the main server to leave the table, and wait until it let this philosopher go.
+     */
+    private void leaveTable() {
+        if (leaving || mainServerConnection == null) return;
+        Log.info("%s asks to leave the table ...", name);
+        sendToMainServer(new Message(Message.Kind.LEAVE_TABLE));
+        try {
+            if (!left.await(LEAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                Log.warn("%s was not let go within %d s", name, LEAVE_TIMEOUT_SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        Log.flush();
+    }
+
+    private void cleanup() throws IOException {
+        leaving = true;
+        if (waiterConnection != null) waiterConnection.close();
+        if (forkConnections != null) {
+            for (int fork = 0; fork < forkConnections.length(); fork++) {
+                Connection connection = forkConnections.get(fork);
+                if (connection != null) connection.close();
+            }
         }
+        mainServerConnection.close();
+        if (trace != null) trace.close();
     }
 
     private void setupForkConnection(Object[] connectionInfo) {
         try {
-            String leftForkServerAddress = (String) connectionInfo[0];
-            int leftForkServerPort = (int) connectionInfo[1];
-            String rightForkServerAddress = (String) connectionInfo[2];
-            int rightForkServerPort = (int) connectionInfo[3];
+            protocol = (AcquisitionProtocol) connectionInfo[0];
+            seat = (int) connectionInfo[1];
+            String[] hosts = (String[]) connectionInfo[4];
+            int[] ports = (int[]) connectionInfo[5];
+            int[] ids = (int[]) connectionInfo[6];
+            boolean[] holds = (boolean[]) connectionInfo[7];
+            leaseMillis = (long) connectionInfo[8];
+            positions = new int[hosts.length];
+            for (int fork = 0; fork < positions.length; fork++) positions[fork] = fork;
+            session = positions;
 
-            if (leftForkServerPort == rightForkServerPort) throw new AssertionError();
+            if (protocol == AcquisitionProtocol.WAITER) {
+                // An empty host is the main server's
+                String waiterAddress = ((String) connectionInfo[2]).isEmpty() ? mainServerAddress : (String) connectionInfo[2];
+                int waiterPort = (int) connectionInfo[3];
+                Log.info("Connecting to waiter at seat %d: %s at %d", seat, waiterAddress, waiterPort);
+                waiterConnection = transport.connect(waiterAddress, waiterPort);
+                Log.info("Connection done!");
+                waiterLastSent = System.nanoTime();
+                waiterConnection.out().write(new Message(new Object[] {name, seat, protocol, false}, Message.Kind.CONNECT_FORK));
+                return;
+            }
 
-            System.err.println(String.format("Connecting to left fork: %s at %d", leftForkServerAddress, leftForkServerPort));
-            leftForkServerConnection = new Socket(leftForkServerAddress, leftForkServerPort);
-            System.err.println("Connection done!");
-            leftForkServerOutputStream = new ObjectOutputStream(leftForkServerConnection.getOutputStream());
-            leftForkServerOutputStream.writeObject(name);
+            forkConnections = new AtomicReferenceArray<>(hosts.length);
+            forkEndpoints = new AtomicReferenceArray<>(hosts.length);
+            acquiredForks = new boolean[hosts.length];
+            queued = new boolean[hosts.length];
+            inUse = new boolean[hosts.length];
+            lastSent = new long[hosts.length];
+            requestedAt = new AtomicLongArray(hosts.length);
+            forkAcquireMicros = new Histogram[hosts.length];
+            for (int fork = 0; fork < hosts.length; fork++) {
+                // Several forks may share one fork host, so a fork is only identified by all three
+                hosts[fork] = reachable(hosts[fork]);
+                ForkEndpoint endpoint = new ForkEndpoint(hosts[fork], ports[fork], ids[fork]);
+                for (int other = 0; other < fork; other++) {
+                    if (hosts[other].equals(hosts[fork]) && ports[other] == ports[fork] && ids[other] == ids[fork])
+                        throw new AssertionError("Fork " + endpoint + " listed twice");
+                }
+                forkAcquireMicros[fork] = Metrics.histogram(Metrics.FORK_ACQUIRE_MICROS, endpoint.toString());
+                forkEndpoints.set(fork, endpoint);
 
-            System.err.println(String.format("Connecting to right fork: %s at %d", rightForkServerAddress, rightForkServerPort));
-            rightForkServerConnection = new Socket(rightForkServerAddress, rightForkServerPort);
-            System.err.println("Connection done!");
-            rightForkServerOutputStream = new ObjectOutputStream(rightForkServerConnection.getOutputStream());
-            rightForkServerOutputStream.writeObject(name);
+                Log.info("Connecting to fork %d: %s at %d", ids[fork], hosts[fork], ports[fork]);
+                Connection connection = transport.connect(hosts[fork], ports[fork]);
+                Log.info("Connection done!");
+                announce(fork, connection, holds[fork]);
+            }
+
+            if (protocol == AcquisitionProtocol.HYGIENIC) {
+                hygienicForks = new HygienicForks(holds, this::sendToFork);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void listenForkServer(Socket forkServerConnection) {
-        ObjectInputStream in = null;
-        int forkIndex = -1;
-        String forkSide = "";
+    /**
+     * @return where to reach a fork server the main server saw at the given host. Fork servers on the
+     * main server's machine may connect over the loopback, which is the main server's address from here
+     */
+    private String reachable(String host) {
         try {
-            if (forkServerConnection == leftForkServerConnection) {
-                in = new ObjectInputStream(leftForkServerConnection.getInputStream());
-                forkIndex = 0;
-                forkSide = "Left";
+            return InetAddress.getByName(host).isLoopbackAddress() ? mainServerAddress : host;
+        } catch (UnknownHostException e) {
+            return host;
+        }
+    }
+
+    /**
+     * A SETUP after the first one: keep its forks for the next round. Once finished, the philosopher
+     * already left its forks and moves right away.
+     */
+    private void moveLater(Object[] connectionInfo) {
+        String[] hosts = (String[]) connectionInfo[4];
+        int[] ports = (int[]) connectionInfo[5];
+        int[] ids = (int[]) connectionInfo[6];
+        if (protocol != AcquisitionProtocol.TIMEOUT || hosts.length != forkEndpoints.length()) {
+            Log.warn("Ignoring a SETUP that moves %s, only philosophers of the timeout protocol move", name);
+            return;
+        }
+        ForkEndpoint[] target = new ForkEndpoint[hosts.length];
+        for (int fork = 0; fork < target.length; fork++) target[fork] = new ForkEndpoint(reachable(hosts[fork]), ports[fork], ids[fork]);
+        move.set(target);
+        if (finished) moveForks();
+    }
+
+    /**
+     * Move to the forks of the last SETUP, between meals, when no fork is held: leave every fork no
+     * longer needed, take a new one in its position and tell the main server. The listener of the
+     * position connects to the new fork once the old connection closed.
+     */
+    private void moveForks() {
+        ForkEndpoint[] target = move.getAndSet(null);
+        if (target == null) return;
+        List<ForkEndpoint> added = new ArrayList<>(Arrays.asList(target));
+        for (int fork = 0; fork < forkEndpoints.length(); fork++) added.remove(forkEndpoints.get(fork));
+        forksLock.lock();
+        try {
+            for (int fork = 0; fork < forkEndpoints.length() && !added.isEmpty(); fork++) {
+                ForkEndpoint endpoint = forkEndpoints.get(fork);
+                if (Arrays.asList(target).contains(endpoint)) continue;
+                ForkEndpoint replacement = added.remove(0);
+                Log.info("%s moves from fork %s to %s", name, endpoint, replacement);
+                sendToFork(fork, LEAVE_FORK);
+                acquiredForks[fork] = false;
+                queued[fork] = false;
+                forkAcquireMicros[fork] = Metrics.histogram(Metrics.FORK_ACQUIRE_MICROS, replacement.toString());
+                forkEndpoints.set(fork, replacement);
+                closeQuietly(forkConnections.get(fork));
             }
-            else {
-                in = new ObjectInputStream(rightForkServerConnection.getInputStream());
-                forkIndex = 1;
-                forkSide = "Right";
+        } finally {
+            forksLock.unlock();
+        }
+        sendToMainServer(new Message(Message.Kind.SEATED));
+    }
+
+    /**
+     * Tell the fork server who is on the new connection, then use it.
+     */
+    private void announce(int fork, Connection connection, boolean holds) throws IOException {
+        ForkEndpoint endpoint = forkEndpoints.get(fork);
+        sendLock.lock();
+        try {
+            connection.out().write(new Message(new Object[] {name, endpoint.getId(), protocol, holds}, Message.Kind.CONNECT_FORK));
+            lastSent[fork] = System.nanoTime();
+            forkConnections.set(fork, connection);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Connect again to a fork server that went away, or to the fork the position moved to, until it is
+     * back or the table stops. The hello says whether this philosopher holds the fork, and a pending
+     * request is sent again.
+     * @return false if the philosopher left meanwhile
+     */
+    private boolean reconnectFork(int fork) {
+        while (!leaving) {
+            ForkEndpoint endpoint = forkEndpoints.get(fork);
+            Connection connection = null;
+            try {
+                connection = transport.connect(endpoint.getHostname(), endpoint.getPort());
+                Connection connected = connection;
+                if (hygienicForks != null) {
+                    hygienicForks.onReconnected(fork, holds -> announce(fork, connected, holds));
+                } else {
+                    forksLock.lock();
+                    try {
+                        announce(fork, connection, acquiredForks[fork]);
+                        // A fork server that lost its queue would never answer, ask again now or next round
+                        queued[fork] = false;
+                        if (requesting && !acquiredForks[fork] && inSession(fork)) requestFork(fork);
+                    } finally {
+                        forksLock.unlock();
+                    }
+                }
+                Log.info("Reconnected to fork %d", fork);
+                return true;
+            } catch (IOException e) {
+                if (connection != null) closeQuietly(connection);
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return false;
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return false;
+    }
 
+    private static void closeQuietly(Connection connection) {
         try {
-            Message message;
-            while ((message = (Message) Objects.requireNonNull(in).readObject()) != null) {
-                switch (message.getKind()) {
-                    case START:
-                        new Thread(this).start();
-                        break;
-                    case FORK_ACQUIRED:
-                        acquiredForks[forkIndex] = true;
-                        System.err.println(forkSide + " fork acquired!");
-                        synchronized (this) { notify(); }
+            connection.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void listenForkServer(int forkIndex) {
+        while (true) {
+            ForkEndpoint endpoint = forkEndpoints.get(forkIndex);
+            try {
+                listenForkServer(forkIndex, forkConnections.get(forkIndex));
+            } catch (IOException e) {
+                if (leaving) return;
+                if (!finished && forkEndpoints.get(forkIndex) == endpoint) Log.warn("Lost fork %d: %s", forkIndex, e.getMessage());
+            }
+            // Only hygienic forks are still handed over after finishing
+            if (leaving || finished && hygienicForks == null) return;
+            if (forkEndpoints.get(forkIndex) != endpoint) Log.info("Connecting to fork %d at %s ...", forkIndex, forkEndpoints.get(forkIndex));
+            else if (!finished) Log.info("Fork %d went away, reconnecting ...", forkIndex);
+            closeQuietly(forkConnections.get(forkIndex));
+            if (!reconnectFork(forkIndex)) return;
+        }
+    }
+
+    /**
+     * Handle messages from one connection to a fork server, until it closes.
+     */
+    private void listenForkServer(int forkIndex, Connection forkServerConnection) throws IOException {
+        Message message;
+        while ((message = forkServerConnection.in().read()) != null) {
+            if (trace != null) trace.message(name, forkEndpoints.get(forkIndex).toString(), message);
+            switch (message.getKind()) {
+                case START:
+                    executionMode.start(name, this);
+                    break;
+                case FORK_ACQUIRED:
+                    forkAcquireMicros[forkIndex].record(microsSince(requestedAt.get(forkIndex)));
+                    if (hygienicForks != null) {
+                        hygienicForks.onAcquired(forkIndex);
+                        Log.trace("Fork %d acquired!", forkIndex);
                         break;
-                    case FORK_IN_USE:
-                        System.err.println(forkSide + " fork in use!");
+                    }
+                    forksLock.lock();
+                    try {
+                        queued[forkIndex] = false;
+                        backoff.granted(System.nanoTime() - requestedAt.get(forkIndex), inUse[forkIndex]);
+                        if (requesting) {
+                            acquiredForks[forkIndex] = true;
+                            forkArrived.signal();
+                        } else {
+                            // Backing off, the fork goes on to whoever waits for it
+                            sendToFork(forkIndex, LEAVE_FORK);
+                        }
+                    } finally {
+                        forksLock.unlock();
+                    }
+                    Log.trace("Fork %d acquired!", forkIndex);
+                    break;
+                case FORK_IN_USE:
+                    Log.trace("Fork %d in use!", forkIndex);
+                    if (hygienicForks != null) break;
+                    forksLock.lock();
+                    try {
+                        inUse[forkIndex] = true;
+                    } finally {
+                        forksLock.unlock();
+                    }
+                    break;
+                case FORK_REQUESTED:
+                    Log.trace("Fork %d requested!", forkIndex);
+                    hygienicForks.onRequested(forkIndex);
+                    break;
+                case FORK_REVOKED:
+                    Log.warn("Lease of fork %d expired, it was revoked", forkIndex);
+                    if (hygienicForks != null) {
+                        hygienicForks.onRevoked(forkIndex);
                         break;
+                    }
+                    // The round goes on without it, and the next one asks again
+                    forksLock.lock();
+                    try {
+                        acquiredForks[forkIndex] = false;
+                    } finally {
+                        forksLock.unlock();
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void listenWaiter() {
+        try {
+            Message message;
+            while ((message = waiterConnection.in().read()) != null) {
+                if (message.getKind() == Message.Kind.FORK_REVOKED) Log.warn("Lease of the forks of %s expired, they were revoked", name);
+                if (message.getKind() != Message.Kind.FORK_ACQUIRED) continue;
+                forksLock.lock();
+                try {
+                    waiterGranted = true;
+                    forkArrived.signal();
+                } finally {
+                    forksLock.unlock();
                 }
+                Log.trace("Forks acquired!");
             }
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            if (!leaving) e.printStackTrace();
+        }
+    }
+
+    /**
+     * Send to the server of the fork at the given position. While the fork server is away the message is
+     * dropped, the hello on reconnecting makes up for it.
+     */
+    private void sendToFork(int fork, Message message) {
+        sendLock.lock();
+        try {
+            writeToFork(fork, message);
+            flushFork(fork);
+        } finally {
+            sendLock.unlock();
         }
     }
 
-    private void sendMessageToForkServer(ObjectOutputStream outputStream, Message message) {
-        sendMessage(outputStream, message);
+    /**
+     * Send the same message to several forks, flushing only once all of them are written, so forks
+     * behind one multiplexed connection get it in a single write.
+     */
+    private void sendToForks(int[] forks, Message message) {
+        sendLock.lock();
+        try {
+            for (int fork : forks) writeToFork(fork, message);
+            for (int fork : forks) flushFork(fork);
+        } finally {
+            sendLock.unlock();
+        }
     }
 
-    private void sendMessage(ObjectOutputStream outputStream, Message message) {
+    /**
+     * Buffer a message for a fork, noting when forks are requested. Callers hold sendLock and flush.
+     */
+    private void writeToFork(int fork, Message message) {
+        if (message.getKind() == Message.Kind.REQUEST_FORK) requestedAt.set(fork, System.nanoTime());
         try {
-            outputStream.writeObject(message);
+            forkConnections.get(fork).out().writeBuffered(message);
+            lastSent[fork] = System.nanoTime();
+            if (trace != null) trace.message(name, forkEndpoints.get(fork).toString(), message);
+        } catch (IOException e) {
+            if (!leaving) Log.trace("Fork %d is away, dropped %s", fork, message.getKind());
+        }
+    }
+
+    private void flushFork(int fork) {
+        try {
+            forkConnections.get(fork).out().flush();
+        } catch (IOException e) {
+            if (!leaving) Log.trace("Fork %d is away, dropped what was written to it", fork);
+        }
+    }
+
+    private void sendToWaiter(Message message) {
+        sendLock.lock();
+        try {
+            waiterConnection.out().write(message);
+            waiterLastSent = System.nanoTime();
+        } catch (IOException e) {
+            if (!leaving) e.printStackTrace();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Renew the leases of the forks, or of the waiter, that heard nothing from this philosopher for a
+     * third of the lease, until the philosopher leaves.
+     */
+    private void sendHeartbeats() {
+        long intervalMillis = Math.max(1, leaseMillis / 3);
+        long interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        while (!leaving) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sendLock.lock();
+            try {
+                long now = System.nanoTime();
+                if (waiterConnection != null) {
+                    if (now - waiterLastSent >= interval) sendToWaiter(HEARTBEAT);
+                    continue;
+                }
+                for (int fork = 0; fork < lastSent.length; fork++) {
+                    if (now - lastSent[fork] >= interval) writeToFork(fork, HEARTBEAT);
+                }
+                for (int fork = 0; fork < lastSent.length; fork++) flushFork(fork);
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    private static long microsSince(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - nanos);
+    }
+
+    private void sendToMainServer(Message message) {
+        sendLock.lock();
+        try {
+            mainServerConnection.out().write(message);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            sendLock.unlock();
         }
     }
 
+    /**
+     * Dine until the meal or duration bound of the load profile is reached, if any, or until STOP, then
+     * report to the main server. A finished philosopher keeps listening to its forks until the main
+     * server lets it go, so hygienic forks it still holds are handed over on request.
+     */
     @Override
     public void run() {
-        //noinspection InfiniteLoopStatement
-        while (true) {
-            System.err.println("----------------------------------------------------------");
+        long deadline = load.getDurationMillis() > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(load.getDurationMillis()) : Long.MAX_VALUE;
+        int eaten = 0;
+        while ((load.getMeals() == 0 || eaten < load.getMeals()) && System.nanoTime() - deadline < 0
+                && stopRequested.getCount() > 0) {
             think();
-            // Block until all forks are acquired
-            requestForks();
-            eat();
-            gotToEat = true;
-            giveBackForks();
+            if (isStopping()) break;
+            if (forkEndpoints != null) moveForks();
+            chooseSession();
+            if (trace != null) trace.record(EventTrace.Event.HUNGRY, name, null);
+            if (hygienicForks != null) {
+                if (!dineHygienically()) break;
+            } else if (waiterConnection != null) {
+                if (!dineWithWaiter()) break;
+            } else {
+                // Block until all forks are acquired
+                long hungrySince = System.nanoTime();
+                if (!requestForks()) break;
+                acquireMicros.record(microsSince(hungrySince));
+                eat();
+                gotToEat = true;
+                giveBackForks();
+            }
+            eaten++;
         }
+        if (protocol == AcquisitionProtocol.TIMEOUT) {
+            // Fairness policies would otherwise keep the forks for this philosopher's turn
+            sendToForks(positions, LEAVE_FORK);
+        } else if (hygienicForks != null) {
+            hygienicForks.finish();
+        }
+        finished = true;
+        // A move that arrived meanwhile
+        if (forkEndpoints != null) moveForks();
+        Log.info("%s finished after %d meals", name, eaten);
+        sendToMainServer(new Message(new Object[] {name, eaten}, Message.Kind.FINISHED));
     }
 
-    private void eat() {
-        System.err.println(name + " is eating ...");
+    /**
+     * @return false if STOP arrived before the forks did
+     */
+    private boolean dineHygienically() {
+        Log.trace("%s is requesting forks ...", name);
+        long hungrySince = System.nanoTime();
         try {
-            int MAX_EAT_TIME = 5000;
-            Thread.sleep((long) (Math.random() * MAX_EAT_TIME)); } catch (InterruptedException ignored) {}
-        System.err.println(name + " ends eating ...");
+            if (!hygienicForks.acquire()) return false;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        acquireMicros.record(microsSince(hungrySince));
+        eat();
+        hygienicForks.release();
+        return true;
     }
 
-    private void giveBackForks() {
-        Message releaseForkMessage = new Message(gotToEat, Message.Kind.RELEASE_FORK);
-        if (acquiredForks[0]) {
-            System.err.println("Giving back left fork ...");
-            sendMessageToForkServer(leftForkServerOutputStream, releaseForkMessage);
-            acquiredForks[0] = false;
-        }
-        if (acquiredForks[1]) {
-            System.err.println("Giving back right fork ...");
-            sendMessageToForkServer(rightForkServerOutputStream, releaseForkMessage);
-            acquiredForks[1] = false;
+    /**
+     * @return false if STOP arrived before the grant did. The table is stopping then, so the waiter
+     * isn't told, a late grant is simply never used
+     */
+    private boolean dineWithWaiter() {
+        Log.trace("%s is requesting forks ...", name);
+        long hungrySince = System.nanoTime();
+        // No positions means every fork of the seat
+        int[] wanted = session == positions ? new int[0] : session;
+        sendToWaiter(new Message(wanted, Message.Kind.ACQUIRE_FORKS));
+        forksLock.lock();
+        try {
+            while (!waiterGranted && !isStopping()) forkArrived.await();
+            if (!waiterGranted) return false;
+            waiterGranted = false;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            forksLock.unlock();
         }
+        acquireMicros.record(microsSince(hungrySince));
+        eat();
+        Log.trace("Giving back forks ...");
+        sendToWaiter(new Message(1, Message.Kind.RELEASE_FORK));
+        return true;
     }
 
-    private void requestForks() {
-        Message requestForkMessage = new Message(this, Message.Kind.REQUEST_FORK);
-        System.err.println(name + " is requesting forks ...");
+    private void eat() {
+        Log.trace("%s is eating ...", name);
+        if (trace != null) trace.record(EventTrace.Event.EAT, name, null);
+        meals.increment();
+        pause(eatTime.nextNanos(random));
+        Log.trace("%s ends eating ...", name);
+    }
 
-        sendMessageToForkServer(leftForkServerOutputStream, requestForkMessage);
-        sendMessageToForkServer(rightForkServerOutputStream, requestForkMessage);
+    private void giveBackForks() {
+        Message releaseForkMessage = new Message(gotToEat ? 1 : 0, Message.Kind.RELEASE_FORK);
+        forksLock.lock();
+        sendLock.lock();
+        try {
+            for (int fork = 0; fork < acquiredForks.length; fork++) {
+                if (!acquiredForks[fork]) continue;
+                Log.trace("Giving back fork %d ...", fork);
+                writeToFork(fork, releaseForkMessage);
+                acquiredForks[fork] = false;
+            }
+            for (int fork = 0; fork < acquiredForks.length; fork++) flushFork(fork);
+        } finally {
+            sendLock.unlock();
+            forksLock.unlock();
+        }
+    }
 
-        synchronized (this) {
+    /**
+     * Request every fork of the session and wait for all of them. Whoever holds some forks gives them
+     * back when the rest doesn't arrive in time, so no cycle of waiting philosophers lasts, whatever
+     * the topology. It then stays queued for the forks it didn't get, pauses as long as its backoff says
+     * and asks for the forks it gave back.
+     * @return false if STOP arrived before all forks did, whatever was acquired is given back then
+     */
+    private boolean requestForks() {
+        Log.trace("%s is requesting forks ...", name);
+
+        forksLock.lock();
+        try {
+            requesting = true;
+            requestMissingForks();
             while (true) {
                 try {
-                    // Wait for a fork
-                    wait();
-                    // Wait for another fork
-                    wait(3000);
-                    if (acquiredForks[0] && acquiredForks[1])
-                        return;
-                    // Forks not acquired
-                    gotToEat = false;
-                    giveBackForks();
+                    // Wait for a fork. Checking the flags first means a grant that arrived early is not missed
+                    while (acquired() == 0 && !isStopping()) forkArrived.await();
+                    // Wait for the other forks
+                    long remaining = backoff.patienceNanos();
+                    while (acquired() < session.length && remaining > 0 && !isStopping())
+                        remaining = forkArrived.awaitNanos(remaining);
+                    if (acquired() == session.length) {
+                        backoff.succeeded();
+                        return true;
+                    }
+                    if (isStopping()) {
+                        gotToEat = false;
+                        giveBackForks();
+                        return false;
+                    }
+                    // Forks not acquired: leave the ones held, forks still coming are left as they arrive
+                    failedRounds.increment();
+                    requesting = false;
+                    leaveHeldForks();
+                    long pause = backoff.failed(jitter);
+                    while (pause > 0 && !isStopping()) pause = forkArrived.awaitNanos(pause);
+                    if (isStopping()) return false;
+                    requesting = true;
+                    requestMissingForks();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
             }
+        } finally {
+            requesting = false;
+            forksLock.unlock();
         }
     }
 
-    private void think() {
-        System.err.println(name + " is thinking ...");
+    /**
+     * Request the forks of the session neither held nor already asked for. Callers hold forksLock.
+     */
+    private void requestMissingForks() {
+        sendLock.lock();
+        try {
+            for (int fork : session) {
+                if (acquiredForks[fork] || queued[fork]) continue;
+                queued[fork] = true;
+                inUse[fork] = false;
+                writeToFork(fork, REQUEST_FORK);
+            }
+            for (int fork : session) flushFork(fork);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Request one fork. Callers hold forksLock.
+     */
+    private void requestFork(int fork) {
+        queued[fork] = true;
+        inUse[fork] = false;
+        sendToFork(fork, REQUEST_FORK);
+    }
+
+    /**
+     * Give the held forks to whoever waits for them, without queueing for them again. Callers hold forksLock.
+     */
+    private void leaveHeldForks() {
+        sendLock.lock();
         try {
-            int MAX_THINK_TIME = 5000;
-            Thread.sleep((long) (Math.random() * MAX_THINK_TIME)); } catch (InterruptedException ignored) {}
-        System.err.println(name + " woke up ...");
+            for (int fork = 0; fork < acquiredForks.length; fork++) {
+                if (!acquiredForks[fork]) continue;
+                Log.trace("Leaving fork %d ...", fork);
+                writeToFork(fork, LEAVE_FORK);
+                acquiredForks[fork] = false;
+            }
+            for (int fork = 0; fork < acquiredForks.length; fork++) flushFork(fork);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * @return how many forks of the session are held, callers hold forksLock
+     */
+    private int acquired() {
+        int count = 0;
+        for (int fork : session) {
+            if (acquiredForks[fork]) count++;
+        }
+        return count;
     }
 
-    String getName() {
-        return name;
+    private boolean inSession(int fork) {
+        for (int wanted : session) {
+            if (wanted == fork) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Pick the forks needed for the next meal: all of them, or a random subset of the session size.
+     * Only the waiter sees what a philosopher asks for as a whole; a fork server waits for whichever
+     * neighbour's turn it is, so with the other protocols every meal needs every fork.
+     */
+    private void chooseSession() {
+        int size = load.getSessionForks();
+        if (size <= 0 || size >= positions.length || waiterConnection == null) return;
+        int[] deck = positions.clone();
+        for (int i = 0; i < size; i++) {
+            int j = random.nextInt(i, deck.length);
+            int card = deck[i];
+            deck[i] = deck[j];
+            deck[j] = card;
+        }
+        session = Arrays.copyOf(deck, size);
+    }
+
+    private boolean isStopping() {
+        return stopRequested.getCount() == 0;
+    }
+
+    private void think() {
+        Log.trace("%s is thinking ...", name);
+        pause(thinkTime.nextNanos(random));
+        Log.trace("%s woke up ...", name);
+    }
+
+    private void pause(long nanos) {
+        if (nanos <= 0) return;
+        try {
+            stopRequested.await(nanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ignored) {}
     }
 
     public static void main(String[] args) {
-        new Philosopher(args[0], args[1], Integer.parseInt(args[2]));
+        new Philosopher(args[0], args[1], Integer.parseInt(args[2]), Transport.fromSystemProperties(), true);
     }
 }
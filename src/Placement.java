@@ -0,0 +1,79 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Seats philosophers on the machines of their forks, so fewer fork messages cross the network. The
+ * main server numbers forks host by host, which puts the forks of most ring seats on a single host.
+ * Seat by seat, the philosopher comes from the host with most of the seat's forks, ties going to the
+ * host with the most philosophers still to seat, so no host is left with philosophers only far from
+ * their forks. Within a host, philosophers keep their order.
+ * <p>
+ * A remote hop is a fork of a seat on another host than the seat's philosopher. Every hop costs the
+ * same, nodes don't measure round trips to each other.
+ */
+final class Placement {
+    private Placement() {}
+
+    /**
+     * @param forkHosts the host of every fork of the topology
+     * @param philosopherHosts the host of every philosopher, in the order to keep within a host
+     * @return which philosopher sits at each seat
+     */
+    static int[] seat(TableTopology topology, String[] forkHosts, String[] philosopherHosts) {
+        Map<String, Deque<Integer>> unseated = new TreeMap<>();
+        for (int philosopher = 0; philosopher < philosopherHosts.length; philosopher++)
+            unseated.computeIfAbsent(philosopherHosts[philosopher], host -> new ArrayDeque<>()).add(philosopher);
+
+        int[] seats = new int[Math.min(topology.seats(), philosopherHosts.length)];
+        for (int seat = 0; seat < seats.length; seat++) {
+            String best = null;
+            int bestHops = Integer.MAX_VALUE;
+            for (Map.Entry<String, Deque<Integer>> host : unseated.entrySet()) {
+                int hops = remoteHops(topology.forksOf(seat), forkHosts, host.getKey());
+                if (hops < bestHops || hops == bestHops && host.getValue().size() > unseated.get(best).size()) {
+                    best = host.getKey();
+                    bestHops = hops;
+                }
+            }
+            Deque<Integer> left = unseated.get(best);
+            seats[seat] = left.poll();
+            if (left.isEmpty()) unseated.remove(best);
+        }
+        return seats;
+    }
+
+    /**
+     * @param seatHosts the host of the philosopher at every seat
+     * @return how many forks of all seats are on another host than their philosopher
+     */
+    static int remoteHops(TableTopology topology, String[] forkHosts, String[] seatHosts) {
+        int hops = 0;
+        for (int seat = 0; seat < seatHosts.length; seat++) hops += remoteHops(topology.forksOf(seat), forkHosts, seatHosts[seat]);
+        return hops;
+    }
+
+    /**
+     * Log forks, philosophers and remote hops per host.
+     */
+    static void log(TableTopology topology, String[] forkHosts, String[] seatHosts) {
+        Map<String, int[]> hosts = new TreeMap<>();
+        for (String host : forkHosts) hosts.computeIfAbsent(host, h -> new int[3])[0]++;
+        for (int seat = 0; seat < seatHosts.length; seat++) {
+            int[] counts = hosts.computeIfAbsent(seatHosts[seat], h -> new int[3]);
+            counts[1]++;
+            counts[2] += remoteHops(topology.forksOf(seat), forkHosts, seatHosts[seat]);
+        }
+        hosts.forEach((host, counts) -> Log.info("  %s", String.format("%s: %d forks, %d philosophers, %d remote hops",
+                host, counts[0], counts[1], counts[2])));
+    }
+
+    private static int remoteHops(int[] forks, String[] forkHosts, String host) {
+        int hops = 0;
+        for (int fork : forks) {
+            if (!forkHosts[fork].equals(host)) hops++;
+        }
+        return hops;
+    }
+}
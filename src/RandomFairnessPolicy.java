@@ -1,11 +1,104 @@
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
+/**
+ * Picks any waiting contender with equal probability, ignoring meal counts. Draws come from a
+ * SplitMix64 sequence whose state goes into journal snapshots, so a replay picks alike.
+ */
 public class RandomFairnessPolicy implements FairnessPolicy {
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state;
+    private int[] meals = new int[2];
+    // Waiting contenders, packed, and where each sits among them (-1 if not waiting)
+    private int[] waiters = new int[2];
+    private int[] slot = new int[2];
+    private int waiting;
+    private int size;
+
+    public RandomFairnessPolicy() {
+        this(new SplittableRandom());
+    }
+
+    /**
+     * @param random seeds the draws
+     */
+    RandomFairnessPolicy(SplittableRandom random) {
+        state = random.nextLong();
+    }
+
+    @Override
+    public int addContender() {
+        if (size == meals.length) {
+            meals = Arrays.copyOf(meals, size * 2);
+            waiters = Arrays.copyOf(waiters, size * 2);
+            slot = Arrays.copyOf(slot, size * 2);
+        }
+        slot[size] = -1;
+        return size++;
+    }
+
+    @Override
+    public void ate(int contender) {
+        meals[contender]++;
+    }
+
+    @Override
+    public int whoWillEat() {
+        state += GAMMA;
+        long z = state;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        // The high 32 bits scaled to the range, anyone if nobody waits
+        if (waiting == 0) return (int) (((z >>> 32) * size) >>> 32);
+        return waiters[(int) (((z >>> 32) * waiting) >>> 32)];
+    }
+
+    @Override
+    public int meals(int contender) {
+        return meals[contender];
+    }
+
     @Override
-    public Socket whoWillEat(Map<Socket, Integer> philosophers) {
-        ArrayList<Map.Entry<Socket, Integer>> entries = new ArrayList<>(philosophers.entrySet());
-        return entries.get((int) (Math.random() * entries.size())).getKey();
+    public boolean picksAmongWaiting() {
+        return true;
+    }
+
+    @Override
+    public void waiting(int contender) {
+        if (slot[contender] >= 0) return;
+        slot[contender] = waiting;
+        waiters[waiting++] = contender;
+    }
+
+    @Override
+    public void granted(int contender) {
+        stopWaiting(contender);
+    }
+
+    @Override
+    public void left(int contender) {
+        stopWaiting(contender);
+    }
+
+    @Override
+    public void writeState(ByteBuffer out) {
+        out.putLong(state);
+    }
+
+    @Override
+    public void readState(ByteBuffer in) {
+        state = in.getLong();
+    }
+
+    private void stopWaiting(int contender) {
+        int at = slot[contender];
+        if (at < 0) return;
+        int last = waiters[--waiting];
+        waiters[at] = last;
+        slot[last] = at;
+        slot[contender] = -1;
     }
 }
@@ -0,0 +1,30 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free event counter, such as meals or failed acquisition rounds.
+ */
+public class RateCounter implements RateCounterMXBean {
+    private final LongAdder count = new LongAdder();
+    private final long createdAt = System.nanoTime();
+
+    void increment() {
+        count.increment();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getRatePerSecond() {
+        long elapsed = System.nanoTime() - createdAt;
+        return elapsed <= 0 ? 0 : getCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d rate=%.2f/s", getCount(), getRatePerSecond());
+    }
+}
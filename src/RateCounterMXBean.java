@@ -0,0 +1,11 @@
+/**
+ * JMX view of a {@link RateCounter}.
+ */
+public interface RateCounterMXBean {
+    long getCount();
+
+    /**
+     * @return events per second since the counter was created
+     */
+    double getRatePerSecond();
+}
@@ -0,0 +1,66 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The original Java serialization framing. The stream is reset after every message so the handle
+ * tables don't grow for the life of the connection.
+ */
+public class SerializedMessageCodec implements MessageCodec {
+    @Override
+    public MessageOutput newOutput(OutputStream out) throws IOException {
+        ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        return new MessageOutput() {
+            @Override
+            public void write(Message message) throws IOException {
+                writeBuffered(message);
+                objectOut.flush();
+            }
+
+            @Override
+            public void writeBuffered(Message message) throws IOException {
+                objectOut.writeObject(message);
+                objectOut.reset();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                objectOut.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                objectOut.close();
+            }
+        };
+    }
+
+    @Override
+    public MessageInput newInput(InputStream in) {
+        // The stream header is read lazily so both ends can open their inputs in any order
+        return new MessageInput() {
+            private ObjectInputStream objectIn;
+
+            @Override
+            public Message read() throws IOException {
+                try {
+                    if (objectIn == null) objectIn = new ObjectInputStream(in);
+                    return (Message) objectIn.readObject();
+                } catch (EOFException e) {
+                    return null;
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (objectIn != null) objectIn.close();
+                else in.close();
+            }
+        };
+    }
+}
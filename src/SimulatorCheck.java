@@ -0,0 +1,54 @@
+import java.io.IOException;
+
+/**
+ * Runs a {@link TableSimulator} table for every fairness policy on the timeout protocol and for the
+ * hygienic protocol, on a ring and, for the timeout protocol, on a random table whose forks have more
+ * than two sharers. Fails if any of them gets stuck before every philosopher had its meals, which
+ * catches deadlocks and livelocks of the protocols and policies in seconds. Runs are seeded, so a
+ * failure reproduces with the same {@code dining.seed}.
+ * <p>
+ * {@code dining.think}, {@code dining.eat} and {@code dining.meals} default to the think and eat times
+ * of a real table and 50 meals: long meals against a short network delay are what leaves a free fork
+ * waiting for somebody who isn't asking.
+ * <p>
+ * Usage: {@code SimulatorCheck [philosophers]}, 200 by default. Exits with status 1 on a failure.
+ */
+public class SimulatorCheck {
+    private static final String[] POLICIES = {"alternated", "random", "adaptive"};
+
+    public static void main(String[] args) throws IOException {
+        int philosophers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        LoadProfile load = new LoadProfile(System.getProperty("dining.think", "uniform:5000"),
+                System.getProperty("dining.eat", "uniform:5000"), Long.getLong("dining.seed", 1),
+                Integer.getInteger("dining.meals", 50), 0, 0);
+        String shared = "random:" + Math.max(3, philosophers / 2) + ":2-3";
+
+        int failed = 0;
+        for (String policy : POLICIES) {
+            if (!check(AcquisitionProtocol.TIMEOUT, "ring", policy, philosophers, load)) failed++;
+            if (!check(AcquisitionProtocol.TIMEOUT, shared, policy, philosophers, load)) failed++;
+        }
+        // Hygienic forks ignore the policy and take two sharers at most
+        if (!check(AcquisitionProtocol.HYGIENIC, "ring", POLICIES[0], philosophers, load)) failed++;
+
+        if (failed > 0) Log.warn("%d of %d simulated tables got stuck", failed, 2 * POLICIES.length + 1);
+        else Log.info("All %d simulated tables finished", 2 * POLICIES.length + 1);
+        Log.flush();
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    /**
+     * @return whether every philosopher had its meals
+     */
+    private static boolean check(AcquisitionProtocol protocol, String topology, String policy, int philosophers,
+                                 LoadProfile load) throws IOException {
+        TableSimulator simulator = new TableSimulator(protocol, TableTopology.parse(topology, philosophers, load.getSeed()), load,
+                policy, DurationDistribution.parse("exponential:0.2"), 1, 3000);
+        long start = System.nanoTime();
+        boolean finished = simulator.run();
+        String table = protocol.name().toLowerCase() + ", " + topology + (protocol == AcquisitionProtocol.HYGIENIC ? "" : ", " + policy + " policy");
+        Log.info("%s", String.format("%s: %s in %.2f s", table, finished ? "finished" : "STUCK", (System.nanoTime() - start) / 1e9));
+        if (!finished) simulator.report((System.nanoTime() - start) / 1e9);
+        return finished;
+    }
+}
@@ -0,0 +1,457 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discrete-event simulation of a whole table in virtual time, to compare fairness policies and
+ * protocols at sizes and lengths a real table can't reach. Forks run the real {@link ForkProtocol}
+ * with a real {@link FairnessPolicy}. Hygienic philosophers run the real {@link HygienicForks}; timeout
+ * philosophers play the round of {@link Philosopher}: ask for every fork, wait for the first one, give
+ * back what they got when the rest doesn't arrive in time and pause as their {@link Backoff} says
+ * before asking again. Every message takes a
+ * network delay, in order per connection. Nothing sleeps: one thread pops events off a priority queue
+ * ordered by virtual time.
+ * <p>
+ * Configured like a real table ({@code dining.protocol}, {@code dining.policy}, {@code dining.topology},
+ * {@code dining.think}, {@code dining.eat}, {@code dining.seed}, and {@code dining.meals} or
+ * {@code dining.duration} in virtual seconds), plus:
+ * <ul>
+ *     <li>{@code dining.sim.delay}: one-way network delay as a {@link DurationDistribution},
+ *     {@code exponential:0.2} by default</li>
+ *     <li>{@code dining.backoff.min} and {@code dining.backoff.max}: bounds of the backoff of timeout
+ *     philosophers in milliseconds, 1 and 3000 by default, like for {@link Philosopher}</li>
+ * </ul>
+ * A run that goes a virtual minute, or twenty maximal backoffs, without a meal is reported stuck and ends.
+ * The waiter protocol, leases and crashes are not simulated.
+ * <p>
+ * Usage: {@code TableSimulator <philosophers>}
+ */
+public class TableSimulator {
+    private static final Message REQUEST_FORK = new Message(Message.Kind.REQUEST_FORK);
+    private static final Message LEAVE_FORK = new Message(Message.Kind.LEAVE_FORK);
+    private static final Message ATE = new Message(1, Message.Kind.RELEASE_FORK);
+
+    private static final int HUNGRY = 0;
+    private static final int DONE_EATING = 1;
+    private static final int GIVE_UP = 2;
+    private static final int TO_FORK = 3;
+    private static final int TO_SEAT = 4;
+    private static final int RETRY = 5;
+
+    private final AcquisitionProtocol protocol;
+    private final LoadProfile load;
+    private final DurationDistribution think;
+    private final DurationDistribution eat;
+    private final DurationDistribution delay;
+    private final long minBackoffNanos;
+    private final long maxBackoffNanos;
+    private final long endNanos;
+    private final SplittableRandom random;
+
+    private final Seat[] seats;
+    private final ForkProtocol<Seat>[] forks;
+    private final ForkProtocol.Replies<Seat>[] replies;
+    private final EventQueue events = new EventQueue();
+    private long now;
+    private long sequence;
+
+    private long handled;
+    // A run without a meal for this long is stuck in a livelock, like timeout philosophers passing forks around
+    private final long stuckNanos;
+    private long lastMeal;
+    private long failedRounds;
+    private final Histogram mealWaitMicros = new Histogram();
+
+    /**
+     * Something that happens at a point in virtual time. Ties go in scheduling order, so a run only
+     * depends on the seed.
+     */
+    private static final class Event {
+        private final long time;
+        private final long sequence;
+        private final int kind;
+        private final Seat seat;
+        // Position of the fork among the forks of the seat
+        private final int position;
+        private final Message message;
+        private final int round;
+
+        private Event(long time, long sequence, int kind, Seat seat, int position, Message message, int round) {
+            this.time = time;
+            this.sequence = sequence;
+            this.kind = kind;
+            this.seat = seat;
+            this.position = position;
+            this.message = message;
+            this.round = round;
+        }
+    }
+
+    /**
+     * Four-ary min-heap of events by time, then by scheduling order. The keys are kept in arrays of
+     * their own, so sifting through a large heap doesn't chase event references.
+     */
+    private static final class EventQueue {
+        private long[] times = new long[1024];
+        private long[] sequences = new long[1024];
+        private Event[] events = new Event[1024];
+        private int size;
+
+        void add(Event event) {
+            if (size == events.length) {
+                times = Arrays.copyOf(times, size * 2);
+                sequences = Arrays.copyOf(sequences, size * 2);
+                events = Arrays.copyOf(events, size * 2);
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 2;
+                if (!before(event.time, event.sequence, parent)) break;
+                move(parent, index);
+                index = parent;
+            }
+            place(event, index);
+        }
+
+        /**
+         * @return the earliest event, or null if none is left
+         */
+        Event poll() {
+            if (size == 0) return null;
+            Event first = events[0];
+            Event last = events[--size];
+            events[size] = null;
+            if (size == 0) return first;
+            int index = 0;
+            while (true) {
+                int child = 4 * index + 1;
+                if (child >= size) break;
+                int earliest = child;
+                for (int sibling = child + 1; sibling < Math.min(child + 4, size); sibling++) {
+                    if (before(times[sibling], sequences[sibling], earliest)) earliest = sibling;
+                }
+                if (!before(times[earliest], sequences[earliest], last.time, last.sequence)) break;
+                move(earliest, index);
+                index = earliest;
+            }
+            place(last, index);
+            return first;
+        }
+
+        private boolean before(long time, long sequence, int index) {
+            return before(time, sequence, times[index], sequences[index]);
+        }
+
+        private static boolean before(long time, long sequence, long otherTime, long otherSequence) {
+            return time < otherTime || time == otherTime && sequence < otherSequence;
+        }
+
+        private void move(int from, int to) {
+            place(events[from], to);
+        }
+
+        private void place(Event event, int index) {
+            events[index] = event;
+            times[index] = event.time;
+            sequences[index] = event.sequence;
+        }
+    }
+
+    /**
+     * A philosopher and the state its {@link Philosopher} would keep.
+     */
+    private static final class Seat {
+        private final int index;
+        // Ascending, so a fork finds its position by binary search
+        private final int[] forks;
+        private final SplittableRandom random;
+        // When the last message on each connection arrives, in each direction
+        private final long[] toForkAt;
+        private final long[] toSeatAt;
+        private final boolean[] acquired;
+        // Asked for and not granted yet, and answered FORK_IN_USE meanwhile
+        private final boolean[] queued;
+        private final boolean[] inUse;
+        private final long[] requestedAt;
+        private int acquiredCount;
+        private boolean requesting;
+        // Bumped when a round ends, so the timeout of an earlier round is ignored
+        private int round;
+        // Only used by the timeout protocol
+        private Backoff backoff;
+        private SplittableRandom jitter;
+        private long hungrySince;
+        private int meals;
+        // Only used by the hygienic protocol
+        private HygienicForks hygienic;
+
+        private Seat(int index, int[] forks, SplittableRandom random) {
+            this.index = index;
+            this.forks = forks;
+            this.random = random;
+            toForkAt = new long[forks.length];
+            toSeatAt = new long[forks.length];
+            acquired = new boolean[forks.length];
+            queued = new boolean[forks.length];
+            inUse = new boolean[forks.length];
+            requestedAt = new long[forks.length];
+        }
+
+        @Override
+        public String toString() {
+            return "P" + index;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TableSimulator(AcquisitionProtocol protocol, TableTopology topology, LoadProfile load, String policy,
+                   DurationDistribution delay, long minBackoffMillis, long maxBackoffMillis) {
+        if (protocol == AcquisitionProtocol.WAITER) throw new IllegalArgumentException("The waiter protocol is not simulated");
+        if (!load.isBounded()) throw new IllegalArgumentException("Set dining.meals or dining.duration");
+        topology.check(protocol);
+        this.protocol = protocol;
+        this.load = load;
+        this.delay = delay;
+        think = load.think();
+        eat = load.eat();
+        minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(minBackoffMillis);
+        maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+        stuckNanos = Math.max(TimeUnit.MINUTES.toNanos(1), 20 * maxBackoffNanos);
+        endNanos = load.getDurationMillis() > 0 ? TimeUnit.MILLISECONDS.toNanos(load.getDurationMillis()) : Long.MAX_VALUE;
+        random = new SplittableRandom(load.getSeed());
+
+        forks = new ForkProtocol[topology.forks()];
+        replies = new ForkProtocol.Replies[forks.length];
+        for (int fork = 0; fork < forks.length; fork++) {
+            forks[fork] = ForkProtocol.create(protocol, policy(policy));
+            int from = fork;
+            replies[fork] = (seat, message) -> sendToSeat(from, seat, message);
+        }
+        seats = new Seat[topology.seats()];
+        for (int index = 0; index < seats.length; index++) {
+            Seat seat = new Seat(index, topology.forksOf(index), load.random(index));
+            seats[index] = seat;
+            boolean[] holds = new boolean[seat.forks.length];
+            for (int position = 0; position < holds.length; position++) {
+                holds[position] = topology.holdsInitially(index, seat.forks[position]);
+                forks[seat.forks[position]].register(seat, holds[position]);
+            }
+            if (protocol == AcquisitionProtocol.HYGIENIC) {
+                seat.hygienic = new HygienicForks(holds, (position, message) -> sendToFork(seat, position, message));
+            } else {
+                seat.backoff = new Backoff(minBackoffNanos, maxBackoffNanos);
+                // Apart from the seat's random, so think and eat durations don't depend on the backoff
+                seat.jitter = random.split();
+            }
+        }
+    }
+
+    private FairnessPolicy policy(String name) {
+        return FairnessPolicy.create(name, () -> now, random.split());
+    }
+
+    /**
+     * Run until every philosopher had its meals, or until the duration is up.
+     * @return false if the table got stuck before
+     */
+    boolean run() throws IOException {
+        for (Seat seat : seats) schedule(think.nextNanos(seat.random), HUNGRY, seat, 0, null, 0);
+        Event event;
+        while ((event = events.poll()) != null && event.time <= endNanos) {
+            now = event.time;
+            handled++;
+            if (now - lastMeal > stuckNanos) {
+                Log.warn("No meal for %.1f s after %.3f s, the table is stuck", (now - lastMeal) / 1e9, lastMeal / 1e9);
+                return false;
+            }
+            switch (event.kind) {
+                case HUNGRY:
+                    becomeHungry(event.seat);
+                    break;
+                case DONE_EATING:
+                    doneEating(event.seat);
+                    break;
+                case GIVE_UP:
+                    giveUp(event.seat, event.round);
+                    break;
+                case RETRY:
+                    event.seat.requesting = true;
+                    requestMissingForks(event.seat);
+                    break;
+                case TO_FORK:
+                    int fork = event.seat.forks[event.position];
+                    forks[fork].handle(event.seat, event.message, replies[fork]);
+                    break;
+                case TO_SEAT:
+                    receive(event.seat, event.position, event.message);
+                    break;
+            }
+        }
+        // A duration bound ends mid-meal
+        if (event != null) {
+            now = endNanos;
+            return true;
+        }
+        for (Seat seat : seats) {
+            if (load.getMeals() == 0 || seat.meals < load.getMeals()) {
+                Log.warn("Nothing left to happen after %.3f s, %s and others are stuck", now / 1e9, seat);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void becomeHungry(Seat seat) {
+        seat.hungrySince = now;
+        if (seat.hygienic != null) {
+            seat.hygienic.becomeHungry();
+            if (seat.hygienic.eatIfReady()) startEating(seat);
+            return;
+        }
+        seat.requesting = true;
+        requestMissingForks(seat);
+    }
+
+    private void requestMissingForks(Seat seat) {
+        for (int position = 0; position < seat.forks.length; position++) {
+            if (seat.acquired[position] || seat.queued[position]) continue;
+            seat.queued[position] = true;
+            seat.inUse[position] = false;
+            seat.requestedAt[position] = now;
+            sendToFork(seat, position, REQUEST_FORK);
+        }
+    }
+
+    private void receive(Seat seat, int position, Message message) {
+        switch (message.getKind()) {
+            case FORK_ACQUIRED:
+                if (seat.hygienic != null) {
+                    seat.hygienic.onAcquired(position);
+                    if (seat.hygienic.eatIfReady()) startEating(seat);
+                    break;
+                }
+                if (seat.acquired[position]) break;
+                seat.queued[position] = false;
+                seat.backoff.granted(now - seat.requestedAt[position], seat.inUse[position]);
+                if (!seat.requesting) {
+                    // Backing off, the fork goes on to whoever waits for it
+                    sendToFork(seat, position, LEAVE_FORK);
+                    break;
+                }
+                seat.acquired[position] = true;
+                seat.acquiredCount++;
+                if (seat.acquiredCount == seat.forks.length) {
+                    seat.round++;
+                    seat.backoff.succeeded();
+                    startEating(seat);
+                } else if (seat.acquiredCount == 1) {
+                    // Wait for the other forks
+                    schedule(seat.backoff.patienceNanos(), GIVE_UP, seat, 0, null, seat.round);
+                }
+                break;
+            case FORK_IN_USE:
+                if (seat.hygienic == null) seat.inUse[position] = true;
+                break;
+            case FORK_REQUESTED:
+                seat.hygienic.onRequested(position);
+                break;
+        }
+    }
+
+    /**
+     * The rest of the forks didn't arrive in time: leave the ones acquired, pause and ask for them
+     * again, like {@link Philosopher}.
+     */
+    private void giveUp(Seat seat, int round) {
+        if (round != seat.round || !seat.requesting) return;
+        seat.round++;
+        failedRounds++;
+        seat.requesting = false;
+        giveBack(seat, LEAVE_FORK);
+        schedule(seat.backoff.failed(seat.jitter), RETRY, seat, 0, null, seat.round);
+    }
+
+    private void startEating(Seat seat) {
+        seat.requesting = false;
+        seat.meals++;
+        lastMeal = now;
+        mealWaitMicros.record(TimeUnit.NANOSECONDS.toMicros(now - seat.hungrySince));
+        schedule(eat.nextNanos(seat.random), DONE_EATING, seat, 0, null, 0);
+    }
+
+    private void doneEating(Seat seat) {
+        if (seat.hygienic != null) seat.hygienic.release();
+        else giveBack(seat, ATE);
+        if (load.getMeals() == 0 || seat.meals < load.getMeals()) {
+            schedule(think.nextNanos(seat.random), HUNGRY, seat, 0, null, 0);
+        } else if (seat.hygienic == null) {
+            // Fairness policies would otherwise keep the forks for this philosopher's turn
+            for (int position = 0; position < seat.forks.length; position++) sendToFork(seat, position, LEAVE_FORK);
+        }
+    }
+
+    private void giveBack(Seat seat, Message release) {
+        for (int position = 0; position < seat.forks.length; position++) {
+            if (!seat.acquired[position]) continue;
+            seat.acquired[position] = false;
+            sendToFork(seat, position, release);
+        }
+        seat.acquiredCount = 0;
+    }
+
+    private void sendToFork(Seat seat, int position, Message message) {
+        long arrival = Math.max(now + delay.nextNanos(random), seat.toForkAt[position]);
+        seat.toForkAt[position] = arrival;
+        schedule(arrival - now, TO_FORK, seat, position, message, 0);
+    }
+
+    private void sendToSeat(int fork, Seat seat, Message message) {
+        int position = Arrays.binarySearch(seat.forks, fork);
+        long arrival = Math.max(now + delay.nextNanos(random), seat.toSeatAt[position]);
+        seat.toSeatAt[position] = arrival;
+        schedule(arrival - now, TO_SEAT, seat, position, message, 0);
+    }
+
+    private void schedule(long afterNanos, int kind, Seat seat, int position, Message message, int round) {
+        events.add(new Event(now + afterNanos, sequence++, kind, seat, position, message, round));
+    }
+
+    /**
+     * Print the virtual throughput and fairness like the main server does, and how fast the simulation ran.
+     */
+    void report(double wallSeconds) {
+        long total = 0;
+        double squares = 0;
+        int least = Integer.MAX_VALUE;
+        int most = 0;
+        for (Seat seat : seats) {
+            total += seat.meals;
+            squares += (double) seat.meals * seat.meals;
+            least = Math.min(least, seat.meals);
+            most = Math.max(most, seat.meals);
+        }
+        double fairness = squares == 0 ? 1 : total * (double) total / (seats.length * squares);
+        double seconds = now / 1e9;
+
+        Log.info("%s", String.format("Simulated %.1f s of %d seats (%s) in %.2f s, %d events, %.0f events/s",
+                seconds, seats.length, protocol.name().toLowerCase(), wallSeconds, handled, handled / wallSeconds));
+        Log.info("Run finished: %d meals in %.2f s", total, seconds);
+        Log.info("Throughput: %.1f meals/s, Jain's fairness index: %.4f", total / seconds, fairness);
+        Log.info("Meals per philosopher: %d to %d, %d failed rounds", least, most, failedRounds);
+        Log.info("Meal waits (us): %s", mealWaitMicros);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numberOfPhilosophers = Integer.parseInt(args[0]);
+        LoadProfile load = LoadProfile.fromSystemProperties();
+        TableSimulator simulator = new TableSimulator(AcquisitionProtocol.fromSystemProperties(),
+                TableTopology.fromSystemProperties(numberOfPhilosophers, load.getSeed()), load,
+                System.getProperty("dining.policy", "alternated"),
+                DurationDistribution.parse(System.getProperty("dining.sim.delay", "exponential:0.2")),
+                Long.getLong("dining.backoff.min", 1), Long.getLong("dining.backoff.max", 3000));
+        long start = System.nanoTime();
+        simulator.run();
+        simulator.report((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Which forks every seat needs: a bipartite graph of philosophers and forks, chosen on the main server
+ * with {@code dining.topology}:
+ * <ul>
+ *     <li>{@code ring} (default): seat i needs forks i and i + 1, the classic table</li>
+ *     <li>{@code file:<path>}: one line per seat listing the indices of its forks, blank lines and
+ *     {@code #} comments ignored</li>
+ *     <li>{@code random:<forks>:<k>} or {@code random:<forks>:<min k>-<max k>}: every seat needs k
+ *     distinct forks picked at random out of the given number, seeded by {@code dining.seed}</li>
+ * </ul>
+ * Forks are numbered in the order the main server sorts fork servers. A fork may be shared by any
+ * number of seats, but the hygienic protocol only works on forks shared by at most two.
+ * <p>
+ * Each fork initially belongs to the lowest seat sharing it, which keeps the precedence graph of the
+ * hygienic protocol acyclic.
+ */
+final class TableTopology {
+    private final String spec;
+    // Fork indices of every seat, ascending
+    private final int[][] forksOf;
+    private final int[] sharers;
+    // Lowest seat sharing each fork, -1 when nobody needs it
+    private final int[] owner;
+
+    private TableTopology(String spec, int[][] forksOf, int forks) {
+        this.spec = spec;
+        this.forksOf = forksOf;
+        sharers = new int[forks];
+        owner = new int[forks];
+        Arrays.fill(owner, -1);
+        for (int seat = 0; seat < forksOf.length; seat++) {
+            int[] needed = forksOf[seat];
+            if (needed.length == 0) throw new IllegalArgumentException("Seat " + seat + " needs no fork");
+            Arrays.sort(needed);
+            for (int i = 0; i < needed.length; i++) {
+                int fork = needed[i];
+                if (fork < 0 || fork >= forks) throw new IllegalArgumentException("Seat " + seat + " needs unknown fork " + fork);
+                if (i > 0 && needed[i - 1] == fork) throw new IllegalArgumentException("Seat " + seat + " needs fork " + fork + " twice");
+                sharers[fork]++;
+                if (owner[fork] < 0) owner[fork] = seat;
+            }
+        }
+    }
+
+    static TableTopology ring(int seats) {
+        int[][] forksOf = new int[seats][];
+        for (int seat = 0; seat < seats; seat++) forksOf[seat] = new int[] {seat, (seat + 1) % seats};
+        return new TableTopology("ring", forksOf, seats);
+    }
+
+    /**
+     * @param seats how many philosophers sit at the table
+     * @param seed seeds a random topology
+     */
+    static TableTopology parse(String spec, int seats, long seed) {
+        String[] parts = spec.split(":", 2);
+        switch (parts[0]) {
+            case "ring":
+                return ring(seats);
+            case "file":
+                return fromFile(spec, parts[1], seats);
+            case "random":
+                return random(spec, parts[1], seats, seed);
+            default:
+                throw new IllegalArgumentException("Unknown topology: " + spec);
+        }
+    }
+
+    static TableTopology fromSystemProperties(int seats, long seed) {
+        return parse(System.getProperty("dining.topology", "ring"), seats, seed);
+    }
+
+    private static TableTopology fromFile(String spec, String path, int seats) {
+        List<int[]> forksOf = new ArrayList<>();
+        int forks = 0;
+        try {
+            for (String line : Files.readAllLines(Paths.get(path))) {
+                int comment = line.indexOf('#');
+                line = (comment < 0 ? line : line.substring(0, comment)).trim();
+                if (line.isEmpty()) continue;
+                int[] needed = Arrays.stream(line.split("[\\s,]+")).mapToInt(Integer::parseInt).toArray();
+                for (int fork : needed) forks = Math.max(forks, fork + 1);
+                forksOf.add(needed);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read topology " + path, e);
+        }
+        if (forksOf.size() != seats)
+            throw new IllegalArgumentException(String.format("Topology %s has %d seats, not %d", path, forksOf.size(), seats));
+        return new TableTopology(spec, forksOf.toArray(new int[0][]), forks);
+    }
+
+    private static TableTopology random(String spec, String parameters, int seats, long seed) {
+        String[] parts = parameters.split(":");
+        int forks = Integer.parseInt(parts[0]);
+        String[] bounds = parts[1].split("-");
+        int minK = Integer.parseInt(bounds[0]);
+        int maxK = bounds.length > 1 ? Integer.parseInt(bounds[1]) : minK;
+        if (minK < 1 || maxK < minK || maxK > forks)
+            throw new IllegalArgumentException("Bad fork count per seat: " + parts[1]);
+
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] deck = new int[forks];
+        for (int fork = 0; fork < forks; fork++) deck[fork] = fork;
+        int[][] forksOf = new int[seats][];
+        for (int seat = 0; seat < seats; seat++) {
+            int k = random.nextInt(minK, maxK + 1);
+            // Partial Fisher-Yates: the first k cards of the deck are the forks of this seat
+            for (int i = 0; i < k; i++) {
+                int j = random.nextInt(i, forks);
+                int card = deck[i];
+                deck[i] = deck[j];
+                deck[j] = card;
+            }
+            forksOf[seat] = Arrays.copyOf(deck, k);
+        }
+        return new TableTopology(spec, forksOf, forks);
+    }
+
+    int seats() {
+        return forksOf.length;
+    }
+
+    int forks() {
+        return sharers.length;
+    }
+
+    /**
+     * @return the fork indices of the seat, ascending. Don't modify.
+     */
+    int[] forksOf(int seat) {
+        return forksOf[seat];
+    }
+
+    boolean isRing() {
+        return spec.equals("ring");
+    }
+
+    boolean holdsInitially(int seat, int fork) {
+        return owner[fork] == seat;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the protocol can't run on this topology
+     */
+    void check(AcquisitionProtocol protocol) {
+        // Chandy-Misra forks are edges between two philosophers
+        if (protocol != AcquisitionProtocol.HYGIENIC) return;
+        for (int fork = 0; fork < sharers.length; fork++) {
+            if (sharers[fork] > 2)
+                throw new IllegalArgumentException(String.format("The hygienic protocol needs every fork shared by at most two philosophers, fork %d has %d", fork, sharers[fork]));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s topology, %d seats, %d forks", spec, seats(), forks());
+    }
+}
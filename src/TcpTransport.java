@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * One socket per connection, with messages framed by a {@link MessageCodec}.
+ */
+public class TcpTransport implements Transport {
+    private final MessageCodec codec;
+
+    TcpTransport(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public Listener listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                return new TcpConnection(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection connect(String hostname, int port) throws IOException {
+        return new TcpConnection(new Socket(hostname, port));
+    }
+
+    private class TcpConnection implements Connection {
+        private final Socket socket;
+        private final MessageInput in;
+        private final MessageOutput out;
+
+        private TcpConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            // Messages are tiny and often sent back to back, Nagle would hold the second one for an ACK
+            socket.setTcpNoDelay(true);
+            out = codec.newOutput(socket.getOutputStream());
+            in = codec.newInput(socket.getInputStream());
+        }
+
+        @Override
+        public MessageInput in() {
+            return in;
+        }
+
+        @Override
+        public MessageOutput out() {
+            return out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public String peerHost() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public String toString() {
+            return socket.getRemoteSocketAddress().toString();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Offline analysis of the {@link EventTrace} files of a run. The traces of all nodes are merged by time
+ * as they are read, so a run of any length takes little memory, and the report covers:
+ * <ul>
+ *     <li>throughput over time, in buckets of {@code dining.trace.bucket} milliseconds (1000 by
+ *     default), flagging buckets below half the median;</li>
+ *     <li>per philosopher, how long meals were waited for (hungry to eating, from philosopher traces)
+ *     and how long forks were (request to grant, from fork traces), in microseconds;</li>
+ *     <li>the longest waits, with how many grants of the fork went to others meanwhile;</li>
+ *     <li>per fork, how the grants of the fairness policy compare with the order requests arrived
+ *     in.</li>
+ * </ul>
+ * Fork traces mirror the {@link ForkArbiter}: a release without a meal queues the philosopher again,
+ * a leave drops it.
+ * <p>
+ * Usage: {@code TraceAnalyzer <trace directory or file>...}
+ */
+public class TraceAnalyzer {
+    private static final int LONGEST = 5;
+
+    private final long bucketNanos;
+    // Meals from philosopher traces, and releases after a meal from fork traces, by bucket
+    private final TreeMap<Long, long[]> throughput = new TreeMap<>();
+    private long start = Long.MIN_VALUE;
+
+    private final Map<String, Long> hungrySince = new HashMap<>();
+    private final Map<String, Histogram> mealWaits = new TreeMap<>();
+    private final Map<String, Histogram> forkWaits = new TreeMap<>();
+    private final Map<String, ForkOrder> forks = new TreeMap<>();
+    private final PriorityQueue<Wait> longestMealWaits = new PriorityQueue<>(Comparator.comparingLong(wait -> wait.nanos));
+    private final PriorityQueue<Wait> longestForkWaits = new PriorityQueue<>(Comparator.comparingLong(wait -> wait.nanos));
+
+    /**
+     * A finished wait of a philosopher.
+     */
+    private static final class Wait {
+        private final String philosopher;
+        // Null for a meal
+        private final String fork;
+        private final long since;
+        private final long nanos;
+        private final int overtaken;
+
+        private Wait(String philosopher, String fork, long since, long nanos, int overtaken) {
+            this.philosopher = philosopher;
+            this.fork = fork;
+            this.since = since;
+            this.nanos = nanos;
+            this.overtaken = overtaken;
+        }
+    }
+
+    /**
+     * A request waiting at a fork.
+     */
+    private static final class Pending {
+        private final long since;
+        // Grants that went to others meanwhile
+        private int overtaken;
+
+        private Pending(long since) {
+            this.since = since;
+        }
+    }
+
+    /**
+     * Grants of one fork against the arrival order of its requests.
+     */
+    private static final class ForkOrder {
+        // By arrival
+        private final Map<String, Pending> queue = new LinkedHashMap<>();
+        private long grants;
+        private long outOfOrder;
+        private long overtaken;
+        private int maxOvertaken;
+        private long revoked;
+    }
+
+    TraceAnalyzer(long bucketMillis) {
+        bucketNanos = TimeUnit.MILLISECONDS.toNanos(bucketMillis);
+    }
+
+    /**
+     * Merge the traces by time and analyze every record.
+     */
+    void analyze(List<Path> paths) throws IOException {
+        PriorityQueue<EventTrace.Reader> merge = new PriorityQueue<>(Comparator.comparingLong(EventTrace.Reader::time));
+        List<EventTrace.Reader> readers = new ArrayList<>();
+        try {
+            for (Path path : paths) {
+                EventTrace.Reader reader = new EventTrace.Reader(path);
+                readers.add(reader);
+                if (reader.next()) merge.add(reader);
+            }
+            EventTrace.Reader reader;
+            while ((reader = merge.poll()) != null) {
+                if (start == Long.MIN_VALUE) start = reader.time();
+                if (reader.isFork()) onForkEvent(reader);
+                else onPhilosopherEvent(reader);
+                if (reader.next()) merge.add(reader);
+            }
+        } finally {
+            for (EventTrace.Reader opened : readers) opened.close();
+        }
+    }
+
+    private void onPhilosopherEvent(EventTrace.Reader record) {
+        String philosopher = record.philosopher();
+        switch (record.event()) {
+            case HUNGRY:
+                hungrySince.put(philosopher, record.time());
+                break;
+            case EAT:
+                count(record.time(), 0);
+                Long since = hungrySince.remove(philosopher);
+                if (since == null) break;
+                long nanos = record.time() - since;
+                mealWaits.computeIfAbsent(philosopher, p -> new Histogram()).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+                keepLongest(longestMealWaits, new Wait(philosopher, null, since, nanos, 0));
+                break;
+        }
+    }
+
+    private void onForkEvent(EventTrace.Reader record) {
+        String philosopher = record.philosopher();
+        ForkOrder fork = forks.computeIfAbsent(record.fork(), f -> new ForkOrder());
+        switch (record.event()) {
+            case REQUEST:
+                fork.queue.putIfAbsent(philosopher, new Pending(record.time()));
+                break;
+            case RELEASE:
+                if (record.flag()) count(record.time(), 1);
+                else fork.queue.putIfAbsent(philosopher, new Pending(record.time()));
+                break;
+            case LEAVE:
+                fork.queue.remove(philosopher);
+                break;
+            case REVOKE:
+                fork.revoked++;
+                break;
+            case GRANT:
+                grant(fork, record.fork(), philosopher, record.time());
+                break;
+        }
+    }
+
+    private void grant(ForkOrder fork, String forkName, String philosopher, long time) {
+        fork.grants++;
+        // A grant without a request, like a fork handed back on reconnecting, overtakes nobody
+        Pending granted = fork.queue.remove(philosopher);
+        if (granted == null) return;
+        // Everyone still queued before it was overtaken
+        int position = 0;
+        for (Pending pending : fork.queue.values()) {
+            if (pending.since > granted.since) break;
+            pending.overtaken++;
+            position++;
+        }
+        if (position > 0) {
+            fork.outOfOrder++;
+            fork.overtaken += position;
+            fork.maxOvertaken = Math.max(fork.maxOvertaken, position);
+        }
+        long nanos = time - granted.since;
+        forkWaits.computeIfAbsent(philosopher, p -> new Histogram()).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        keepLongest(longestForkWaits, new Wait(philosopher, forkName, granted.since, nanos, granted.overtaken));
+    }
+
+    private void count(long time, int column) {
+        throughput.computeIfAbsent((time - start) / bucketNanos, bucket -> new long[2])[column]++;
+    }
+
+    private static void keepLongest(PriorityQueue<Wait> longest, Wait wait) {
+        longest.add(wait);
+        if (longest.size() > LONGEST) longest.poll();
+    }
+
+    void report() {
+        reportThroughput();
+        reportWaits("Meal waits (us, hungry to eating):", mealWaits);
+        reportWaits("Fork waits (us, request to grant):", forkWaits);
+        reportLongest("Longest meal waits:", longestMealWaits);
+        reportLongest("Longest fork waits:", longestForkWaits);
+        Log.info("Grants against request order:");
+        for (Map.Entry<String, ForkOrder> entry : forks.entrySet()) {
+            ForkOrder fork = entry.getValue();
+            Log.info("  %s", String.format("%s: %d grants, %d out of order (%.1f%%), %.2f overtaken per grant, at most %d, %d revoked",
+                    entry.getKey(), fork.grants, fork.outOfOrder, fork.grants == 0 ? 0.0 : 100.0 * fork.outOfOrder / fork.grants,
+                    fork.grants == 0 ? 0.0 : (double) fork.overtaken / fork.grants, fork.maxOvertaken, fork.revoked));
+        }
+    }
+
+    private void reportThroughput() {
+        if (throughput.isEmpty()) return;
+        // Meals if philosophers were traced, fork releases otherwise
+        int column = throughput.values().stream().anyMatch(counts -> counts[0] > 0) ? 0 : 1;
+        long last = throughput.lastKey();
+        long[] perBucket = new long[(int) last + 1];
+        throughput.forEach((bucket, counts) -> perBucket[bucket.intValue()] = counts[column]);
+        long[] sorted = perBucket.clone();
+        Arrays.sort(sorted);
+        long median = sorted[sorted.length / 2];
+        double seconds = bucketNanos / 1e9;
+        Log.info("Throughput (%s per second):", column == 0 ? "meals" : "fork releases after a meal");
+        for (int bucket = 0; bucket < perBucket.length; bucket++) {
+            String collapse = perBucket[bucket] * 2 < median ? "  <- below half the median" : "";
+            Log.info("  %s", String.format("+%7.1fs %8.1f%s", bucket * seconds, perBucket[bucket] / seconds, collapse));
+        }
+    }
+
+    private static void reportWaits(String title, Map<String, Histogram> waits) {
+        if (waits.isEmpty()) return;
+        Log.info(title);
+        waits.forEach((philosopher, histogram) -> Log.info("  %s: %s", philosopher, histogram));
+    }
+
+    private void reportLongest(String title, PriorityQueue<Wait> longest) {
+        if (longest.isEmpty()) return;
+        Log.info(title);
+        List<Wait> waits = new ArrayList<>(longest);
+        waits.sort(Comparator.comparingLong((Wait wait) -> wait.nanos).reversed());
+        for (Wait wait : waits) {
+            String where = wait.fork == null ? "" : String.format(" for %s, overtaken %d times", wait.fork, wait.overtaken);
+            Log.info("  %s", String.format("%s waited %d ms from +%.3fs%s", wait.philosopher,
+                    TimeUnit.NANOSECONDS.toMillis(wait.nanos), (wait.since - start) / 1e9, where));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            if (!Files.isDirectory(path)) {
+                paths.add(path);
+                continue;
+            }
+            try (Stream<Path> files = Files.list(path)) {
+                files.filter(file -> file.toString().endsWith(".trace")).sorted().forEach(paths::add);
+            }
+        }
+        TraceAnalyzer analyzer = new TraceAnalyzer(Long.getLong("dining.trace.bucket", 1000));
+        analyzer.analyze(paths);
+        analyzer.report();
+    }
+}
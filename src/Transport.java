@@ -0,0 +1,36 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * How nodes reach each other. Chosen with the {@code dining.transport} system property:
+ * {@code tcp} (the default), {@code mux}, which shares one socket among all connections between two
+ * processes, or {@code loopback}, which only connects nodes living in the same JVM.
+ */
+public interface Transport {
+    Listener listen(int port) throws IOException;
+
+    Connection connect(String hostname, int port) throws IOException;
+
+    interface Listener extends Closeable {
+        /**
+         * Blocks until a node connects.
+         */
+        Connection accept() throws IOException;
+    }
+
+    static Transport fromSystemProperties() {
+        String name = System.getProperty("dining.transport", "tcp");
+        switch (name) {
+            case "tcp":
+                return new TcpTransport(MessageCodec.fromSystemProperties());
+            case "mux":
+                if (!(MessageCodec.fromSystemProperties() instanceof BinaryMessageCodec))
+                    throw new IllegalStateException("The mux transport needs the binary codec");
+                return MuxTransport.SHARED;
+            case "loopback":
+                return LoopbackTransport.SHARED;
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Central arbitrator for the {@link AcquisitionProtocol#WAITER} protocol, hosted by the main server.
+ * <p>
+ * A philosopher sends a single ACQUIRE_FORKS naming the forks it needs for this meal, all of its forks
+ * by default, and gets a single FORK_ACQUIRED covering them; then a single RELEASE_FORK gives them
+ * back. Nobody ever holds some forks while waiting for others, so any {@link TableTopology} is
+ * deadlock free. Waiting philosophers are served in arrival order, but one may overtake earlier
+ * waiters when its forks are disjoint from theirs, so a fork a waiter is queued for is never handed
+ * to a later arrival.
+ * <p>
+ * Philosophers say hello with CONNECT_FORK, naming their seat where a fork server expects a fork id.
+ * <p>
+ * A grant is a lease on all of its forks, renewed by anything the philosopher sends. A philosopher
+ * silent for longer than the lease gets FORK_REVOKED and its forks go to the next waiters; its late
+ * RELEASE_FORK is ignored.
+ * <p>
+ * Grants are posted to an {@link Outbox} per seat, so a slow philosopher socket doesn't hold the lock
+ * other seats need to release their forks.
+ */
+class Waiter {
+    private static final int WRITER_THREADS = 4;
+    private static final Message FORK_ACQUIRED = new Message(Message.Kind.FORK_ACQUIRED);
+    private static final Message FORK_REVOKED = new Message(Message.Kind.FORK_REVOKED);
+
+    private final Transport.Listener listener;
+    private final ExecutionMode executionMode;
+    private final Executor writers;
+    private final TableTopology topology;
+    // Forks every seat asked for in its pending or current meal, and whether each fork is taken
+    private final int[][] wanted;
+    private final boolean[] taken;
+    private final Outbox[] seats;
+    // Whether each seat holds its forks, and when it was last heard from
+    private final boolean[] granted;
+    private final long[] lastHeard;
+    // 0 when grants never expire
+    private final long leaseNanos;
+    private final Deque<Integer> queue = new ArrayDeque<>();
+    // A fork is reserved for earlier waiters during a serve pass when reservedIn == pass
+    private final int[] reservedIn;
+    private int pass;
+    private volatile boolean closed;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Histogram queueDepth = Metrics.histogram(Metrics.WAITER_QUEUE_DEPTH, "waiter");
+    private final RateCounter revokedLeases = Metrics.counter(Metrics.REVOKED_LEASES, "waiter");
+
+    /**
+     * @param leaseMillis how long a grant lasts without hearing from its holder, 0 for ever
+     */
+    Waiter(Transport transport, int port, TableTopology topology, long leaseMillis) throws IOException {
+        listener = transport.listen(port);
+        executionMode = ExecutionMode.fromSystemProperties();
+        writers = executionMode.newExecutor("Waiter Writer", WRITER_THREADS);
+        this.topology = topology;
+        wanted = new int[topology.seats()][];
+        taken = new boolean[topology.forks()];
+        reservedIn = new int[topology.forks()];
+        seats = new Outbox[topology.seats()];
+        granted = new boolean[topology.seats()];
+        lastHeard = new long[topology.seats()];
+        leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        executionMode.start("Waiter", this::accept);
+        if (leaseMillis > 0) executionMode.start("Waiter Lease Thread", this::expireLeases);
+    }
+
+    /**
+     * Accept until closed, so a connection dropped for a bad hello doesn't take a philosopher's place.
+     */
+    private void accept() {
+        try {
+            for (int i = 0; ; i++) {
+                Connection philosopher = listener.accept();
+                executionMode.start("Waiter Listener " + i, () -> listenPhilosopher(philosopher));
+            }
+        } catch (IOException e) {
+            if (!closed) e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop accepting philosophers. Their connections end when they leave.
+     */
+    void close() throws IOException {
+        closed = true;
+        listener.close();
+    }
+
+    private void listenPhilosopher(Connection philosopher) {
+        try {
+            Message connect = philosopher.in().read();
+            Object[] hello = connect != null && connect.getKind() == Message.Kind.CONNECT_FORK ? (Object[]) connect.getMessage() : null;
+            int seat = hello == null ? -1 : (int) hello[1];
+            if (seat < 0 || seat >= seats.length) {
+                // Gone before its hello, not a philosopher, or not one of the seats
+                if (connect != null) Log.warn("Rejecting connection with hello %s", connect);
+                philosopher.close();
+                return;
+            }
+            seats[seat] = new Outbox(philosopher, writers);
+            Log.info("Philosopher %s sat at seat %d", hello[0], seat);
+
+            Message message;
+            while ((message = philosopher.in().read()) != null) {
+                lock.lock();
+                try {
+                    lastHeard[seat] = System.nanoTime();
+                    switch (message.getKind()) {
+                        case ACQUIRE_FORKS:
+                            wanted[seat] = forks(seat, (int[]) message.getMessage());
+                            queue.add(seat);
+                            break;
+                        case RELEASE_FORK:
+                            // Revoked forks were freed already
+                            if (!granted[seat]) continue;
+                            free(seat);
+                            break;
+                        case HEARTBEAT:
+                            continue;
+                    }
+                    serve();
+                    if (message.getKind() == Message.Kind.ACQUIRE_FORKS) queueDepth.record(queue.size());
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (ProtocolException e) {
+            Log.warn("Dropping a philosopher connection that sent a malformed message: %s", e.getMessage());
+            try {
+                philosopher.close();
+            } catch (IOException ignored) {}
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Revoke the forks of seats whose lease expired, checking a few times per lease.
+     */
+    private void expireLeases() {
+        long checkMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(leaseNanos) / 4);
+        while (!closed) {
+            try {
+                Thread.sleep(checkMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                boolean revoked = false;
+                for (int seat = 0; seat < seats.length; seat++) {
+                    if (!granted[seat] || now - lastHeard[seat] < leaseNanos) continue;
+                    Log.warn("Lease of seat %d expired, revoking its forks", seat);
+                    free(seat);
+                    seats[seat].post(FORK_REVOKED);
+                    revokedLeases.increment();
+                    revoked = true;
+                }
+                if (revoked) serve();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void free(int seat) {
+        for (int fork : wanted[seat]) taken[fork] = false;
+        granted[seat] = false;
+    }
+
+    /**
+     * @param positions positions in the fork list of the seat, empty for all of them
+     * @return the fork indices
+     */
+    private int[] forks(int seat, int[] positions) {
+        int[] all = topology.forksOf(seat);
+        if (positions.length == 0) return all;
+        int[] forks = new int[positions.length];
+        for (int i = 0; i < positions.length; i++) forks[i] = all[positions[i]];
+        return forks;
+    }
+
+    /**
+     * Grant every waiting seat whose forks are free and not reserved by an earlier waiter.
+     */
+    private void serve() {
+        pass++;
+        Iterator<Integer> waiting = queue.iterator();
+        while (waiting.hasNext()) {
+            int seat = waiting.next();
+            int[] forks = wanted[seat];
+            if (available(forks)) {
+                for (int fork : forks) taken[fork] = true;
+                granted[seat] = true;
+                lastHeard[seat] = System.nanoTime();
+                waiting.remove();
+                seats[seat].post(FORK_ACQUIRED);
+            } else {
+                for (int fork : forks) reservedIn[fork] = pass;
+            }
+        }
+    }
+
+    private boolean available(int[] forks) {
+        for (int fork : forks) {
+            if (taken[fork] || reservedIn[fork] == pass) return false;
+        }
+        return true;
+    }
+}